@@ -0,0 +1,279 @@
+package com.saberi.collabocanvas;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal scanner that finds the top-level {@code "action"} value of a JSON line
+ * without building any objects, so pass-through messages can be relayed as raw bytes.
+ * Anything it is not sure about yields {@code null} and the caller falls back to a full parse.
+ */
+final class ActionScanner {
+    private static final byte[] ACTION_KEY = "action".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] LITERALS = {
+            "true".getBytes(StandardCharsets.US_ASCII),
+            "false".getBytes(StandardCharsets.US_ASCII),
+            "null".getBytes(StandardCharsets.US_ASCII)
+    };
+    private static final int MAX_DEPTH = 32;
+
+    private ActionScanner() {
+    }
+
+    /**
+     * Finds the value of the top-level {@code action} key.
+     *
+     * @param buf the buffer holding the line.
+     * @param off the offset of the line in the buffer.
+     * @param len the length of the line, without its terminator.
+     * @return the action, or {@code null} if there is none or the line is not a plain JSON object.
+     */
+    static String peekAction(byte[] buf, int off, int len) {
+        int end = off + len;
+        int i = skipWhitespace(buf, off, end);
+        if (i >= end || buf[i] != '{') {
+            return null;
+        }
+        i++;
+        while (true) {
+            i = skipWhitespace(buf, i, end);
+            if (i >= end || buf[i] != '"') {
+                return null; // end of object or malformed
+            }
+            int keyStart = i + 1;
+            int keyEnd = skipString(buf, i, end);
+            if (keyEnd < 0) {
+                return null;
+            }
+            i = skipWhitespace(buf, keyEnd + 1, end);
+            if (i >= end || buf[i] != ':') {
+                return null;
+            }
+            i = skipWhitespace(buf, i + 1, end);
+            if (isActionKey(buf, keyStart, keyEnd)) {
+                if (i >= end || buf[i] != '"') {
+                    return null;
+                }
+                int valueEnd = skipString(buf, i, end);
+                if (valueEnd < 0) {
+                    return null;
+                }
+                for (int j = i + 1; j < valueEnd; j++) {
+                    if (buf[j] == '\\') {
+                        return null; // escaped actions are not worth handling here
+                    }
+                }
+                return new String(buf, i + 1, valueEnd - i - 1, StandardCharsets.UTF_8);
+            }
+            i = skipValue(buf, i, end);
+            if (i < 0) {
+                return null;
+            }
+            i = skipWhitespace(buf, i, end);
+            if (i >= end || buf[i] != ',') {
+                return null; // reached the end of the object without an action
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Checks that a line is exactly one well-formed JSON object, again without building any
+     * objects, so a raw line is only relayed and recorded if every client can parse it.
+     *
+     * @param buf the buffer holding the line.
+     * @param off the offset of the line in the buffer.
+     * @param len the length of the line, without its terminator.
+     * @return {@code true} if the line holds a complete object and nothing after it.
+     */
+    static boolean isObject(byte[] buf, int off, int len) {
+        int end = off + len;
+        int i = skipWhitespace(buf, off, end);
+        if (i >= end || buf[i] != '{') {
+            return false;
+        }
+        i = checkValue(buf, i, end, 0);
+        return i >= 0 && skipWhitespace(buf, i, end) == end;
+    }
+
+    private static boolean isActionKey(byte[] buf, int start, int end) {
+        if (end - start != ACTION_KEY.length) {
+            return false;
+        }
+        for (int j = 0; j < ACTION_KEY.length; j++) {
+            if (buf[start + j] != ACTION_KEY[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(byte[] buf, int i, int end) {
+        while (i < end && (buf[i] == ' ' || buf[i] == '\t' || buf[i] == '\r' || buf[i] == '\n')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Skips a string starting at the opening quote.
+     *
+     * @return the index of the closing quote, or {@code -1} if the string is not terminated.
+     */
+    private static int skipString(byte[] buf, int i, int end) {
+        for (i = i + 1; i < end; i++) {
+            if (buf[i] == '\\') {
+                i++;
+            } else if (buf[i] == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks the syntax of any JSON value: string, number, literal, object or array.
+     *
+     * @return the index just after the value, or {@code -1} if it is malformed or nested too deeply.
+     */
+    private static int checkValue(byte[] buf, int i, int end, int depth) {
+        if (i >= end) {
+            return -1;
+        }
+        byte b = buf[i];
+        if (b == '"') {
+            int close = skipString(buf, i, end);
+            return close < 0 ? -1 : close + 1;
+        }
+        if (b == '{' || b == '[') {
+            if (depth == MAX_DEPTH) {
+                return -1;
+            }
+            byte close = b == '{' ? (byte) '}' : (byte) ']';
+            i = skipWhitespace(buf, i + 1, end);
+            if (i < end && buf[i] == close) {
+                return i + 1;
+            }
+            while (true) {
+                if (close == '}') {
+                    if (i >= end || buf[i] != '"') {
+                        return -1;
+                    }
+                    i = skipString(buf, i, end);
+                    if (i < 0) {
+                        return -1;
+                    }
+                    i = skipWhitespace(buf, i + 1, end);
+                    if (i >= end || buf[i] != ':') {
+                        return -1;
+                    }
+                    i = skipWhitespace(buf, i + 1, end);
+                }
+                i = checkValue(buf, i, end, depth + 1);
+                if (i < 0) {
+                    return -1;
+                }
+                i = skipWhitespace(buf, i, end);
+                if (i < end && buf[i] == close) {
+                    return i + 1;
+                }
+                if (i >= end || buf[i] != ',') {
+                    return -1;
+                }
+                i = skipWhitespace(buf, i + 1, end);
+            }
+        }
+        if (b == '-' || (b >= '0' && b <= '9')) {
+            return checkNumber(buf, i, end);
+        }
+        for (byte[] literal : LITERALS) {
+            if (end - i >= literal.length && startsWith(buf, i, literal)) {
+                return i + literal.length;
+            }
+        }
+        return -1;
+    }
+
+    private static int checkNumber(byte[] buf, int i, int end) {
+        if (buf[i] == '-') {
+            i++;
+        }
+        int digits = skipDigits(buf, i, end);
+        if (digits == i) {
+            return -1;
+        }
+        i = digits;
+        if (i < end && buf[i] == '.') {
+            digits = skipDigits(buf, i + 1, end);
+            if (digits == i + 1) {
+                return -1;
+            }
+            i = digits;
+        }
+        if (i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+            i++;
+            if (i < end && (buf[i] == '+' || buf[i] == '-')) {
+                i++;
+            }
+            digits = skipDigits(buf, i, end);
+            if (digits == i) {
+                return -1;
+            }
+            i = digits;
+        }
+        return i;
+    }
+
+    private static int skipDigits(byte[] buf, int i, int end) {
+        while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean startsWith(byte[] buf, int i, byte[] prefix) {
+        for (int j = 0; j < prefix.length; j++) {
+            if (buf[i + j] != prefix[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skips any JSON value: string, number, literal, object or array.
+     *
+     * @return the index just after the value, or {@code -1} if it is malformed.
+     */
+    private static int skipValue(byte[] buf, int i, int end) {
+        if (i >= end) {
+            return -1;
+        }
+        if (buf[i] == '"') {
+            int close = skipString(buf, i, end);
+            return close < 0 ? -1 : close + 1;
+        }
+        if (buf[i] == '{' || buf[i] == '[') {
+            int depth = 0;
+            for (; i < end; i++) {
+                byte b = buf[i];
+                if (b == '"') {
+                    i = skipString(buf, i, end);
+                    if (i < 0) {
+                        return -1;
+                    }
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                }
+            }
+            return -1;
+        }
+        while (i < end && buf[i] != ',' && buf[i] != '}') {
+            i++;
+        }
+        return i;
+    }
+}
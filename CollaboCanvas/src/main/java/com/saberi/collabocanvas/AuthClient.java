@@ -0,0 +1,152 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side of a persistent auth connection. Every request gets a {@code RequestId}, so
+ * several can be in flight on the one connection; a reader thread completes each request's
+ * future when the reply with its id arrives. The server closes the connection once it has
+ * been idle for a while, after which {@link #isClosed()} returns {@code true} and a new
+ * client has to be opened.
+ */
+class AuthClient implements Closeable {
+    private static final int REQUEST_TIMEOUT_SECONDS = 10;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<JSONObject>> pending = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Connects to the auth server.
+     *
+     * @param host the server's hostname or IP address.
+     * @param port the server's port number.
+     * @throws IOException if the connection fails.
+     */
+    AuthClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        Thread reader = new Thread(this::readReplies, "auth-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request without waiting for its reply.
+     *
+     * @param request the REGISTER/LOGIN request; not modified.
+     * @return completes with the reply, or exceptionally if the connection closes first.
+     */
+    CompletableFuture<JSONObject> submit(JSONObject request) {
+        long id = nextId.incrementAndGet();
+        CompletableFuture<JSONObject> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        if (closed) {
+            pending.remove(id);
+            reply.completeExceptionally(new IOException("Auth connection closed"));
+            return reply;
+        }
+        JSONObject tagged = new JSONObject(request);
+        tagged.put("RequestId", id);
+        try {
+            synchronized (out) {
+                out.write(Frame.encodeLine(tagged));
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            reply.completeExceptionally(e);
+            close();
+        }
+        return reply;
+    }
+
+    /**
+     * Sends a request and waits for the result, in the text form the auth server's
+     * single-request replies use.
+     *
+     * @param request the REGISTER/LOGIN request.
+     * @return the result code, followed by the session token for a successful LOGIN,
+     * or "Error" if there is no reply.
+     */
+    String request(JSONObject request) {
+        try {
+            JSONObject reply = submit(request).get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Object token = reply.get("Token");
+            return token != null ? reply.get("Result") + " " + token : String.valueOf(reply.get("Result"));
+        } catch (ExecutionException | TimeoutException e) {
+            return "Error";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Error";
+        }
+    }
+
+    private void readReplies() {
+        JSONParser parser = new JSONParser();
+        try (FrameReader reader = new FrameReader(socket.getInputStream(), ServerConfig.AUTH_MAX_LINE_BYTES)) {
+            while (reader.nextLine()) {
+                JSONObject reply = (JSONObject) parser.parse(
+                        new String(reader.buffer(), reader.lineOffset(), reader.lineLength(), StandardCharsets.UTF_8));
+                CompletableFuture<JSONObject> request = pending.remove(((Number) reply.get("RequestId")).longValue());
+                if (request != null) {
+                    request.complete(reply);
+                }
+            }
+        } catch (IOException | ParseException | ClassCastException | NullPointerException e) {
+            if (!closed) {
+                Log.warn("Auth connection failed: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Checks whether the connection is closed.
+     *
+     * @return {@code true} once the connection is closed.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the connection; requests still waiting fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing auth connection", e);
+        }
+        IOException failure = new IOException("Auth connection closed");
+        for (Long id : pending.keySet()) {
+            CompletableFuture<JSONObject> request = pending.remove(id);
+            if (request != null) {
+                request.completeExceptionally(failure);
+            }
+        }
+    }
+}
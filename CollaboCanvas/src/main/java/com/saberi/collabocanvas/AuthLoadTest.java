@@ -0,0 +1,136 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures auth requests per second, sent the way clients used to (a new connection per
+ * request) and over persistent connections with pipelining ({@link AuthClient}).
+ * Every client thread sends LOGIN requests for a user that is not registered, so nothing is
+ * written to the data file.
+ * <p>
+ * Usage: {@code java com.saberi.collabocanvas.AuthLoadTest [clients] [requestsPerClient] [pipelineDepth] [host] [port]}
+ * </p>
+ * Without a host the auth server is started in this process first.
+ */
+public class AuthLoadTest {
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        String host = args.length > 3 ? args[3] : "localhost";
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : ServerConfig.AUTH_PORT;
+        if (args.length <= 3) {
+            startServer(host, port);
+        }
+
+        JSONObject login = new JSONObject();
+        login.put("Type", "LOGIN");
+        login.put("Username", "loadtest");
+        login.put("Password", "loadtest");
+        byte[] line = Frame.encodeLine(login);
+
+        // Warm up both paths, then measure
+        run(clients, () -> connectionPerRequest(host, port, line, requests / 10));
+        run(clients, () -> persistent(host, port, login, requests / 10, depth));
+        double before = run(clients, () -> connectionPerRequest(host, port, line, requests));
+        double after = run(clients, () -> persistent(host, port, login, requests, depth));
+
+        System.out.printf("%d clients x %,d requests%n", clients, requests);
+        System.out.printf("connection per request: %,10.0f requests/s%n", before);
+        System.out.printf("persistent, %3d in flight: %,10.0f requests/s%n", depth, after);
+        System.exit(0);
+    }
+
+    private interface Client {
+        /**
+         * Sends requests and returns how many were answered.
+         */
+        long send() throws Exception;
+    }
+
+    /**
+     * Runs one client per thread and returns the answered requests per second.
+     */
+    private static double run(int clients, Client client) throws InterruptedException {
+        LongAdder answered = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    answered.add(client.send());
+                } catch (Exception e) {
+                    Log.warn("Load test client failed: " + e.getMessage());
+                }
+            }, "load-" + i));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return answered.sum() * 1e9 / Math.max(1, System.nanoTime() - start);
+    }
+
+    /**
+     * Sends requests as the original client did: connect, send one line, read the UTF reply.
+     */
+    private static long connectionPerRequest(String host, int port, byte[] line, int requests) throws IOException {
+        long answered = 0;
+        for (int i = 0; i < requests; i++) {
+            try (Socket socket = new Socket(host, port)) {
+                OutputStream out = socket.getOutputStream();
+                out.write(line);
+                out.flush();
+                new DataInputStream(socket.getInputStream()).readUTF();
+                answered++;
+            }
+        }
+        return answered;
+    }
+
+    /**
+     * Sends requests over one connection, keeping up to {@code depth} of them in flight.
+     */
+    private static long persistent(String host, int port, JSONObject login, int requests, int depth) throws Exception {
+        Semaphore window = new Semaphore(depth);
+        LongAdder answered = new LongAdder();
+        try (AuthClient client = new AuthClient(host, port)) {
+            for (int i = 0; i < requests; i++) {
+                window.acquire();
+                client.submit(login).whenComplete((reply, failure) -> {
+                    if (failure == null) {
+                        answered.increment();
+                    }
+                    window.release();
+                });
+            }
+            window.acquire(depth); // all replies are in
+        }
+        return answered.sum();
+    }
+
+    private static void startServer(String host, int port) throws InterruptedException {
+        Thread server = new Thread(Server::serverConnect, "auth-server");
+        server.setDaemon(true);
+        server.start();
+        while (true) {
+            try {
+                new Socket(host, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+}
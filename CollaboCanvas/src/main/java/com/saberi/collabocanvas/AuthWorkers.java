@@ -0,0 +1,101 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs REGISTER and LOGIN requests, whose password hashing is CPU heavy, on a fixed pool of
+ * {@link ServerConfig#AUTH_WORKERS} threads, so a login storm cannot take the cores the
+ * drawing and chat servers need. At most {@link ServerConfig#AUTH_QUEUE} requests wait for a
+ * worker; beyond that a request is answered right away with {@link #BUSY}.
+ * <p>
+ * Requests are counted, and the time they waited for a worker and took to run is recorded;
+ * {@link #report()} shows them with the current queue depth.
+ * </p>
+ */
+final class AuthWorkers {
+    /** Result code of a request turned away because the queue is full. */
+    static final String BUSY = "5";
+
+    private static final LongAdder completed = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+    private static final LongAdder waitNanos = new LongAdder();
+    private static final LongAdder runNanos = new LongAdder();
+    private static final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    private static final ThreadPoolExecutor pool;
+
+    static {
+        AtomicInteger counter = new AtomicInteger();
+        pool = new ThreadPoolExecutor(ServerConfig.AUTH_WORKERS, ServerConfig.AUTH_WORKERS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ServerConfig.AUTH_QUEUE), task -> {
+            Thread thread = new Thread(task, "auth-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private AuthWorkers() {
+    }
+
+    /**
+     * Queues a request for a worker.
+     *
+     * @param request the REGISTER or LOGIN request.
+     * @return completes with the reply of {@link Server#handleRequest(JSONObject)}, "Error" for a
+     * malformed request, or {@link #BUSY} at once if the queue is full.
+     */
+    static CompletableFuture<String> submit(JSONObject request) {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+        try {
+            pool.execute(() -> {
+                long startedAt = System.nanoTime();
+                String result;
+                try {
+                    result = Server.handleRequest(request);
+                } catch (RuntimeException e) { // missing or mistyped fields
+                    result = "Error";
+                }
+                long finishedAt = System.nanoTime();
+                waitNanos.add(startedAt - queuedAt);
+                runNanos.add(finishedAt - startedAt);
+                maxLatencyNanos.accumulate(finishedAt - queuedAt);
+                completed.increment();
+                reply.complete(result);
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            reply.complete(BUSY);
+        }
+        return reply;
+    }
+
+    /**
+     * Builds a one-line summary of the auth load.
+     *
+     * @return the summary.
+     */
+    static String report() {
+        long done = completed.sum();
+        return "auth: completed=" + done
+                + " rejected=" + rejected.sum()
+                + " queued=" + pool.getQueue().size()
+                + " active=" + pool.getActiveCount()
+                + " avgWaitMs=" + perRequestMillis(waitNanos.sum(), done)
+                + " avgRunMs=" + perRequestMillis(runNanos.sum(), done)
+                + " maxLatencyMs=" + maxLatencyNanos.get() / 1_000_000;
+    }
+
+    private static long perRequestMillis(long nanos, long requests) {
+        return requests == 0 ? 0 : nanos / requests / 1_000_000;
+    }
+}
@@ -0,0 +1,381 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Compact binary framing for the drawing channel, negotiated per connection.
+ * <p>
+ * Every frame is a 4 byte big-endian length followed by that many bytes: one opcode byte and
+ * its payload. Pen strokes and single points get their own opcodes with coordinates quantized
+ * to 1/{@value #QUANT} pixel and written as zigzag varints (deltas between consecutive points),
+ * and the color packed into one ARGB int. Their payload starts with the event's sequence number
+ * as a varint; clients send {@code 0} and the server fills it in when it relays the frame. Everything else travels as {@link #OP_JSON}, which
+ * carries the usual JSON text, so any message can cross between JSON and binary clients.
+ * </p>
+ */
+final class BinaryProtocol {
+    /** Protocol name used in the {@code hello}/{@code welcome} handshake. */
+    static final String NAME = "binary-v1";
+
+    /** Payload is a UTF-8 JSON message. */
+    static final byte OP_JSON = 1;
+    /** Payload is a stroke segment. */
+    static final byte OP_STROKE = 2;
+    /** Payload is a single pen point. */
+    static final byte OP_DRAW = 3;
+
+    /** Coordinates are sent in 1/QUANT pixel steps. */
+    static final int QUANT = 8;
+
+    private static final Set<String> STROKE_KEYS = Set.of("action", "seq", "strokeId", "color", "size", "points");
+    private static final Set<String> DRAW_KEYS = Set.of("action", "seq", "x", "y", "color", "size");
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Encodes a message as a complete binary frame.
+     *
+     * @param message  the message.
+     * @param jsonLine the message already encoded as a JSON line, or {@code null} to encode it here.
+     * @return the frame, including its length prefix.
+     */
+    static byte[] encode(JSONObject message, byte[] jsonLine) {
+        if (message != null) {
+            Object action = message.get("action");
+            try {
+                if ("stroke".equals(action) && STROKE_KEYS.containsAll(message.keySet())) {
+                    return encodeStroke(message);
+                }
+                if ("draw".equals(action) && DRAW_KEYS.containsAll(message.keySet())) {
+                    return encodeDraw(message);
+                }
+            } catch (ClassCastException | NullPointerException | IllegalArgumentException e) {
+                // unexpected field types: fall back to JSON
+            }
+        }
+        byte[] json = jsonLine != null ? jsonLine : Frame.encodeLine(message);
+        int length = json.length - 1; // without the newline
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 5);
+        writeInt(out, length + 1);
+        out.write(OP_JSON);
+        out.write(json, 0, length);
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeStroke(JSONObject message) {
+        JSONArray points = (JSONArray) message.get("points");
+        byte[] strokeId = ((String) message.get("strokeId")).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + strokeId.length + points.size() * 2);
+        writeInt(out, 0); // length, patched below
+        out.write(OP_STROKE);
+        writeVarlong(out, seqOf(message));
+        writeVarint(out, strokeId.length);
+        out.write(strokeId, 0, strokeId.length);
+        writeInt(out, packColor((String) message.get("color")));
+        writeInt(out, Float.floatToIntBits(((Number) message.get("size")).floatValue()));
+        writeVarint(out, points.size() / 2);
+        int lastX = 0, lastY = 0;
+        for (int i = 0; i + 1 < points.size(); i += 2) {
+            int x = quantize((Number) points.get(i));
+            int y = quantize((Number) points.get(i + 1));
+            writeVarint(out, zigzag(x - lastX));
+            writeVarint(out, zigzag(y - lastY));
+            lastX = x;
+            lastY = y;
+        }
+        return patchLength(out.toByteArray());
+    }
+
+    private static byte[] encodeDraw(JSONObject message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(24);
+        writeInt(out, 0); // length, patched below
+        out.write(OP_DRAW);
+        writeVarlong(out, seqOf(message));
+        writeVarint(out, zigzag(quantize((Number) message.get("x"))));
+        writeVarint(out, zigzag(quantize((Number) message.get("y"))));
+        writeInt(out, packColor((String) message.get("color")));
+        writeInt(out, Float.floatToIntBits(((Number) message.get("size")).floatValue()));
+        return patchLength(out.toByteArray());
+    }
+
+    private static long seqOf(JSONObject message) {
+        Object seq = message.get("seq");
+        return seq != null ? ((Number) seq).longValue() : 0;
+    }
+
+    /**
+     * Checks a frame received from a client once, before it is relayed: the length prefix must
+     * match, the opcode must be known and a stroke or point payload must hold exactly its
+     * fields, with a finite pen size. Frames that passed can be stamped with
+     * {@link #withSeq} and decoded without reading past their end. The payload of an
+     * {@link #OP_JSON} frame is checked as a line by the caller.
+     *
+     * @param frame the frame, including its length prefix.
+     * @throws IOException if the frame is malformed.
+     */
+    static void check(byte[] frame) throws IOException {
+        if (frame.length < 5 || frameLength(frame, 0) != frame.length - 4) {
+            throw new IOException("Malformed binary frame: bad length");
+        }
+        int[] pos = {5};
+        try {
+            switch (frame[4]) {
+                case OP_JSON:
+                    return;
+                case OP_STROKE: {
+                    readVarlong(frame, pos);
+                    int idLength = readVarint(frame, pos);
+                    if (idLength < 0 || idLength > frame.length - pos[0]) {
+                        throw new IllegalArgumentException("bad stroke id length");
+                    }
+                    pos[0] += idLength;
+                    readInt(frame, pos); // any ARGB int is a color
+                    checkSize(readInt(frame, pos));
+                    int count = readVarint(frame, pos);
+                    if (count < 0 || count > (frame.length - pos[0]) / 2) { // at least two bytes a point
+                        throw new IllegalArgumentException("bad point count");
+                    }
+                    for (int i = 0; i < 2 * count; i++) {
+                        readVarint(frame, pos);
+                    }
+                    break;
+                }
+                case OP_DRAW:
+                    readVarlong(frame, pos);
+                    readVarint(frame, pos);
+                    readVarint(frame, pos);
+                    readInt(frame, pos);
+                    checkSize(readInt(frame, pos));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown opcode " + frame[4]);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed binary frame: " + e.getMessage());
+        }
+        if (pos[0] != frame.length) {
+            throw new IOException("Malformed binary frame: trailing bytes");
+        }
+    }
+
+    private static void checkSize(int bits) {
+        float size = Float.intBitsToFloat(bits);
+        if (!Float.isFinite(size) || size < 0) {
+            throw new IllegalArgumentException("bad pen size " + size);
+        }
+    }
+
+    /**
+     * Copies a stroke or point frame with a new sequence number, without decoding the rest.
+     *
+     * @param frame the frame, including its length prefix, accepted by {@link #check}.
+     * @param seq   the sequence number.
+     * @return the new frame.
+     */
+    static byte[] withSeq(byte[] frame, long seq) {
+        int[] pos = {5};
+        readVarlong(frame, pos);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length + 8);
+        writeInt(out, 0); // length, patched below
+        out.write(frame[4]);
+        writeVarlong(out, seq);
+        out.write(frame, pos[0], frame.length - pos[0]);
+        return patchLength(out.toByteArray());
+    }
+
+    /**
+     * Decodes a complete binary frame into the equivalent JSON message.
+     *
+     * @param frame the frame, including its length prefix.
+     * @return the message.
+     * @throws ParseException if an {@link #OP_JSON} payload is not valid JSON.
+     */
+    static JSONObject decode(byte[] frame) throws ParseException {
+        int[] pos = {5};
+        switch (frame[4]) {
+            case OP_STROKE: {
+                JSONObject message = new JSONObject();
+                message.put("action", "stroke");
+                putSeq(message, readVarlong(frame, pos));
+                int idLength = readVarint(frame, pos);
+                message.put("strokeId", new String(frame, pos[0], idLength, StandardCharsets.UTF_8));
+                pos[0] += idLength;
+                message.put("color", unpackColor(readInt(frame, pos)));
+                message.put("size", (double) Float.intBitsToFloat(readInt(frame, pos)));
+                int count = readVarint(frame, pos);
+                JSONArray points = new JSONArray();
+                int x = 0, y = 0;
+                for (int i = 0; i < count; i++) {
+                    x += unzigzag(readVarint(frame, pos));
+                    y += unzigzag(readVarint(frame, pos));
+                    points.add((double) x / QUANT);
+                    points.add((double) y / QUANT);
+                }
+                message.put("points", points);
+                return message;
+            }
+            case OP_DRAW: {
+                JSONObject message = new JSONObject();
+                message.put("action", "draw");
+                putSeq(message, readVarlong(frame, pos));
+                message.put("x", (double) unzigzag(readVarint(frame, pos)) / QUANT);
+                message.put("y", (double) unzigzag(readVarint(frame, pos)) / QUANT);
+                message.put("color", unpackColor(readInt(frame, pos)));
+                message.put("size", (double) Float.intBitsToFloat(readInt(frame, pos)));
+                return message;
+            }
+            default:
+                return (JSONObject) new JSONParser().parse(new String(frame, 5, frame.length - 5, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void putSeq(JSONObject message, long seq) {
+        if (seq != 0) {
+            message.put("seq", seq);
+        }
+    }
+
+    /**
+     * Gets the action a frame stands for without decoding it.
+     *
+     * @param frame the frame, including its length prefix.
+     * @return {@code "stroke"} or {@code "draw"}, or {@code null} for {@link #OP_JSON} frames.
+     */
+    static String actionOf(byte[] frame) {
+        switch (frame[4]) {
+            case OP_STROKE:
+                return "stroke";
+            case OP_DRAW:
+                return "draw";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Packs a JavaFX color string ({@code 0xrrggbbaa}) into an ARGB int.
+     *
+     * @param color the color string.
+     * @return the packed color.
+     */
+    static int packColor(String color) {
+        if (color == null || color.length() != 10 || !color.startsWith("0x")) {
+            throw new IllegalArgumentException("Unsupported color: " + color);
+        }
+        long rgba = Long.parseLong(color.substring(2), 16);
+        return (int) (((rgba & 0xFF) << 24) | (rgba >>> 8));
+    }
+
+    /**
+     * Turns a packed ARGB int back into a JavaFX color string.
+     *
+     * @param argb the packed color.
+     * @return the color string, e.g. {@code 0x000000ff}.
+     */
+    static String unpackColor(int argb) {
+        return String.format("0x%06x%02x", argb & 0xFFFFFF, argb >>> 24);
+    }
+
+    private static int quantize(Number value) {
+        return (int) Math.round(value.doubleValue() * QUANT);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] buf, int[] pos) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            requireBytes(buf, pos, 1);
+            byte b = buf[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static void writeVarlong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarlong(byte[] buf, int[] pos) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            requireBytes(buf, pos, 1);
+            byte b = buf[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(byte[] buf, int[] pos) {
+        requireBytes(buf, pos, 4);
+        int p = pos[0];
+        pos[0] += 4;
+        return ((buf[p] & 0xFF) << 24) | ((buf[p + 1] & 0xFF) << 16) | ((buf[p + 2] & 0xFF) << 8) | (buf[p + 3] & 0xFF);
+    }
+
+    private static void requireBytes(byte[] buf, int[] pos, int count) {
+        if (buf.length - pos[0] < count) {
+            throw new IllegalArgumentException("truncated frame");
+        }
+    }
+
+    /**
+     * Reads the length prefix of a frame.
+     *
+     * @param buf the buffer holding the frame.
+     * @param off the offset of the length prefix.
+     * @return the number of bytes after the prefix.
+     */
+    static int frameLength(byte[] buf, int off) {
+        return readInt(buf, new int[]{off});
+    }
+
+    private static byte[] patchLength(byte[] frame) {
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+}
@@ -0,0 +1,49 @@
+package com.saberi.collabocanvas;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of read buffers, so connections that come and go do not allocate a fresh
+ * buffer each. Only buffers of the standard size are pooled; larger ones are left to the
+ * garbage collector.
+ */
+final class BufferPool {
+    /** Size of a pooled buffer. */
+    static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_POOLED = 256;
+
+    private static final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if the pool is empty.
+     *
+     * @return a buffer of {@link #BUFFER_SIZE} bytes.
+     */
+    static byte[] acquire() {
+        byte[] buffer = free.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it afterwards.
+     *
+     * @param buffer the buffer; ignored unless it has the standard size.
+     */
+    static void release(byte[] buffer) {
+        if (buffer.length == BUFFER_SIZE && pooled.incrementAndGet() <= MAX_POOLED) {
+            free.add(buffer);
+        } else if (buffer.length == BUFFER_SIZE) {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -24,6 +24,7 @@ import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -126,7 +127,13 @@ public class CanvaController {
      * ListView to display the list of connected clients.
      */
     @FXML
-    private static ListView<String> connectedClientList;
+    private ListView<String> connectedClientList;
+
+    /**
+     * The users online, kept up to date from the drawing server's presence messages.
+     * Only changed on the JavaFX thread.
+     */
+    private final ObservableList<String> onlineUsers = FXCollections.observableArrayList();
 
     /**
      * Button to send a chat message.
@@ -147,14 +154,29 @@ public class CanvaController {
     private TextArea messageTextArea;
 
     /**
-     * Socket connection for client-server communication.
+     * Connection to the drawing server; replaced when the client reconnects.
+     */
+    private volatile DrawingClient drawingClient;
+
+    /**
+     * Where and as whom to reconnect to the drawing server. The session token from the login
+     * lets reconnects skip logging in again.
+     */
+    private String drawingHost;
+    private int drawingPort;
+    private String drawingUserName;
+    private String sessionToken;
+
+    /**
+     * The multiplexed connection carrying drawing and chat, or {@code null} when they use
+     * separate sockets; replaced when the client reconnects.
      */
-    private Socket socket;
+    private volatile MuxClient mux;
 
     /**
-     * Output stream to send data to the server.
+     * The room to draw in, set with {@code -Dcollabocanvas.client.room} or {@code --room=}.
      */
-    private PrintWriter out;
+    private final String room = System.getProperty("collabocanvas.client.room", "main");
 
     /**
      * Indicates if text mode is currently active.
@@ -224,7 +246,11 @@ public class CanvaController {
     private BufferedReader in1;
 
     private List<TextShape> textShapes = new ArrayList<>();
-    private BufferedReader in;
+
+    /**
+     * Groups pen points into stroke segments before they are sent to the drawing server.
+     */
+    private final StrokeBatcher strokeBatcher = new StrokeBatcher(this::sendToDrawingServer);
 
     /**
      * Initializes the canvas, its tools, and event handlers.
@@ -234,7 +260,7 @@ public class CanvaController {
         gc = DrawingCanvas.getGraphicsContext2D();
         setupCanvasDrawing(gc);
 
-        showOnlineClients();
+        connectedClientList.setItems(onlineUsers);
 
         // Configure the pen button to toggle the pen mode
         penButton.setOnAction(event -> togglePenMode());
@@ -309,7 +335,14 @@ public class CanvaController {
     private void sendMessageToServer(String message) {
         JSONObject jsonObject = new JSONObject();
         jsonObject.put("text", message);
-        if (out1 != null) {
+        MuxClient chat = mux;
+        if (chat != null) {
+            try {
+                chat.send(MuxProtocol.CHAT, jsonObject.toJSONString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.out.println("Failed to send the message: " + e.getMessage());
+            }
+        } else if (out1 != null) {
             out1.println(jsonObject.toJSONString());  // Send the message to the server
         }
     }
@@ -466,6 +499,7 @@ public class CanvaController {
                 tempPointsY.clear();
                 tempPointsX.add(event.getX());
                 tempPointsY.add(event.getY());
+                strokeBatcher.beginStroke(penColor.toString(), penSize, event.getX(), event.getY());
             } else if ("eraser".equals(currentMode)) {
                 gc.beginPath();
                 gc.moveTo(event.getX(), event.getY());
@@ -489,8 +523,8 @@ public class CanvaController {
                 gc.stroke();
                 gc.setLineWidth(penSize);
 
-                // Send drawing data to the server
-                sendDrawingData(event.getX(), event.getY(), penColor.toString(), penSize); // Send the current coordinates and color
+                // Batch the point into the current stroke segment for the server
+                strokeBatcher.addPoint(event.getX(), event.getY());
             } else if ("eraser".equals(currentMode)) {
                 gc.setLineWidth(penSize); // Use adjustable eraser size
                 gc.setStroke(Color.WHITE); // Eraser uses white color
@@ -541,6 +575,7 @@ public class CanvaController {
         // Handle mouse release to finalize the shape
         DrawingCanvas.addEventHandler(MouseEvent.MOUSE_RELEASED, event -> {
             if ("pen".equals(currentMode)) {
+                strokeBatcher.endStroke();
                 shapes.add(new FreehandShape(new ArrayList<>(tempPointsX), new ArrayList<>(tempPointsY), penSize));
             } else if ("eraser".equals(currentMode)) {
                 gc.closePath();
@@ -583,22 +618,26 @@ public class CanvaController {
 
     /**
      * Connects to the server using the specified host and port.
-     * Establishes input and output streams for communication.
+     * Performs the handshake for the given user and offers the binary protocol when
+     * {@code -Dcollabocanvas.client.binary=true} is set.
      *
-     * @param host The hostname or IP address of the server to connect to.
-     * @param port The port number on which the server is listening.
+     * @param host     The hostname or IP address of the server to connect to.
+     * @param port     The port number on which the server is listening.
+     * @param userName The name of the logged in user.
+     * @param token    The session token from the login, or {@code null}.
      */
-    public void connectToServer(String host, int port) {
+    public void connectToServer(String host, int port, String userName, String token) {
+        drawingHost = host;
+        drawingPort = port;
+        drawingUserName = userName;
+        sessionToken = token;
         try {
-            // Establish the connection to the server
-            socket = new Socket(host, port);
-
-            // Set up the input and output streams
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // Establish the connection to the server and complete the handshake
+            drawingClient = new DrawingClient(host, port, userName, token, room, Boolean.getBoolean("collabocanvas.client.binary"), -1, null);
 
             // Once connected, log a success message
-            System.out.println("Connected to server at " + host + ":" + port);
+            System.out.println("Connected to server at " + host + ":" + port
+                    + (drawingClient.isBinary() ? " (binary protocol)" : ""));
 
             // Start listening for incoming data from the server
             startListening();
@@ -608,52 +647,181 @@ public class CanvaController {
         }
     }
 
+    /**
+     * Starts drawing and chat over an already connected multiplexed connection, which
+     * replaces the separate drawing and messaging sockets.
+     *
+     * @param host     The hostname or IP address of the server, for reconnecting.
+     * @param port     The port number of the multiplexed server, for reconnecting.
+     * @param mux      The connection, possibly already used to log in.
+     * @param userName The name of the logged in user.
+     * @param token    The session token from the login, or {@code null}.
+     */
+    public void connectOverMux(String host, int port, MuxClient mux, String userName, String token) {
+        drawingHost = host;
+        drawingPort = port;
+        drawingUserName = userName;
+        sessionToken = token;
+        try {
+            drawingClient = new DrawingClient(mux, userName, token, room, Boolean.getBoolean("collabocanvas.client.binary"), -1, null);
+            mux.openChat(userName, token);
+            this.mux = mux;
+            System.out.println("Connected to server at " + host + ":" + port + " (multiplexed"
+                    + (drawingClient.isBinary() ? ", binary protocol)" : ")"));
+            startListening();
+            startListeningMux(mux);
+        } catch (IOException e) {
+            System.out.println("Failed to connect to the server: " + e.getMessage());
+        }
+    }
+
     /**
      * Listens for messages from the server and processes them in a separate thread.
      * Handles actions such as drawing shapes, updating text, or other client-specific updates.
+     * When the connection drops, reconnects and asks only for the events missed meanwhile.
      */
     public void startListening() {
-        List<Double> tempPointsX = new ArrayList<>();
-        List<Double> tempPointsY = new ArrayList<>();
         new Thread(() -> {
+            while (true) {
+                try {
+                    JSONObject jsonResponse;
+                    while ((jsonResponse = drawingClient.receive()) != null) {
+                        JSONObject received = jsonResponse;
+                        Log.sample(Log.Level.DEBUG, () -> "Received from server: " + received.toJSONString());
+                        try {
+                            handleDrawingMessage(jsonResponse);
+                        } catch (RuntimeException e) { // one bad message must not stop the listener
+                            System.out.println("Ignoring malformed drawing message: " + e);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error while listening for server messages: " + e.getMessage());
+                }
+                if (!reconnectToDrawingServer()) {
+                    return;
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Reconnects to the drawing server, retrying with a growing delay.
+     *
+     * @return {@code true} once reconnected, {@code false} if the thread was interrupted.
+     */
+    private boolean reconnectToDrawingServer() {
+        DrawingClient lost = drawingClient;
+        lost.close();
+        long delay = 500;
+        while (true) {
             try {
-                String message;
-                while ((message = in.readLine()) != null) {
-                    // Process the incoming message (expected in JSON format)
-                    JSONParser parser = new JSONParser();
-                    JSONObject jsonResponse = (JSONObject) parser.parse(message);
-                    System.out.println("Received from server: " + jsonResponse.toString());
-
-                    // Here you can parse the drawing data and update the canvas
-                    String action = (String) jsonResponse.get("action"); // Action should be "draw" or other actions
-                    if ("draw".equals(action)) {
-                        // Parse drawing data and display it on the canvas
-                        double x = ((Number) jsonResponse.get("x")).doubleValue();  // Casting to Number to retrieve double value
-                        double y = ((Number) jsonResponse.get("y")).doubleValue();
-                        String color = (String) jsonResponse.get("color");
-                        double size = ((Number) jsonResponse.get("size")).doubleValue(); // Get the pen size
-                        tempPointsX.clear();
-                        tempPointsY.clear();
-                        tempPointsX.add(x);
-                        tempPointsY.add(y);
-
-                        shapes.add(new FreehandShape(new ArrayList<>(tempPointsX), new ArrayList<>(tempPointsY), size));
-                        // Call your method to update the drawing on the canvas with received data
-                        Platform.runLater(() -> updateCanvas(jsonResponse)); // Ensure UI update happens on the JavaFX thread
-                    } else if ("shape".equals(action)) {
-                        // Handle shape drawing
-                        Platform.runLater(() -> updateCanvas(jsonResponse));
-                    } else if ("textdata".equals(action)) {
-                        // Handle shape drawing
-                        Platform.runLater(() -> updateCanvas(jsonResponse));
+                Thread.sleep(delay);
+                if (mux != null) {
+                    MuxClient next = new MuxClient(drawingHost, drawingPort);
+                    try {
+                        drawingClient = new DrawingClient(next, drawingUserName, sessionToken, room,
+                                Boolean.getBoolean("collabocanvas.client.binary"), lost.getLastSeq(), lost.getNode());
+                        next.openChat(drawingUserName, sessionToken);
+                    } catch (IOException e) {
+                        next.close();
+                        throw e;
                     }
+                    mux = next;
+                    startListeningMux(next);
+                } else {
+                    drawingClient = new DrawingClient(drawingHost, drawingPort, drawingUserName, sessionToken, room,
+                            Boolean.getBoolean("collabocanvas.client.binary"), lost.getLastSeq(), lost.getNode());
                 }
+                System.out.println("Reconnected to the drawing server after event " + lost.getLastSeq());
+                return true;
             } catch (IOException e) {
-                System.out.println("Error while listening for server messages: " + e.getMessage());
-            } catch (ParseException parseException) {
-                parseException.printStackTrace();
+                System.out.println("Reconnect failed: " + e.getMessage());
+                delay = Math.min(delay * 2, 30_000);
+            } catch (InterruptedException e) {
+                return false;
             }
-        }).start();
+        }
+    }
+
+    /**
+     * Applies one message from the drawing server to the canvas.
+     * A {@code snapshot}, sent when joining, carries everything drawn before and is replayed in order;
+     * a large canvas arrives as several snapshot parts.
+     *
+     * @param message the message received from the server.
+     */
+    private void handleDrawingMessage(JSONObject message) {
+        String action = (String) message.get("action"); // Action should be "draw" or other actions
+        if ("draw".equals(action)) {
+            if (!(message.get("x") instanceof Number) || !(message.get("y") instanceof Number)
+                    || !(message.get("size") instanceof Number) || penColor(message) == null) {
+                System.out.println("Ignoring malformed draw message: " + message.toJSONString());
+                return;
+            }
+            // Parse drawing data and display it on the canvas
+            double x = ((Number) message.get("x")).doubleValue();  // Casting to Number to retrieve double value
+            double y = ((Number) message.get("y")).doubleValue();
+            double size = ((Number) message.get("size")).doubleValue(); // Get the pen size
+            List<Double> tempPointsX = new ArrayList<>();
+            List<Double> tempPointsY = new ArrayList<>();
+            tempPointsX.add(x);
+            tempPointsY.add(y);
+
+            shapes.add(new FreehandShape(tempPointsX, tempPointsY, size));
+            // Call your method to update the drawing on the canvas with received data
+            Platform.runLater(() -> updateCanvas(message)); // Ensure UI update happens on the JavaFX thread
+        } else if ("stroke".equals(action)) {
+            // A batch of pen points belonging to one stroke
+            Platform.runLater(() -> drawStrokeSegment(message));
+        } else if ("shape".equals(action)) {
+            // Handle shape drawing
+            Platform.runLater(() -> updateCanvas(message));
+        } else if ("textdata".equals(action)) {
+            // Handle shape drawing
+            Platform.runLater(() -> updateCanvas(message));
+        } else if ("snapshot".equals(action)) {
+            // The snapshot is the whole canvas, so it replaces whatever is drawn;
+            // a large one comes in parts, and only the first replaces the canvas
+            if (!(message.get("part") instanceof Number) || ((Number) message.get("part")).intValue() == 0) {
+                shapes.clear();
+                Platform.runLater(() -> gc.clearRect(0, 0, DrawingCanvas.getWidth(), DrawingCanvas.getHeight()));
+            }
+            JSONArray events = (JSONArray) message.get("events");
+            for (Object event : events) {
+                handleDrawingMessage((JSONObject) event);
+            }
+        } else if ("presence".equals(action)) {
+            Platform.runLater(() -> updateOnlineUsers(message));
+        } else if ("control".equals(action)) {
+            // e.g. the server dropped input over its rate limit
+            System.out.println("Server notice: " + message.get("type") + " " + message.get("limit"));
+        }
+    }
+
+    /**
+     * Applies a presence message to the list of online users: a snapshot replaces the list,
+     * joins and leaves change it. Runs on the JavaFX thread.
+     *
+     * @param presence the presence message.
+     */
+    private void updateOnlineUsers(JSONObject presence) {
+        String userName = (String) presence.get("username");
+        switch (String.valueOf(presence.get("type"))) {
+            case "snapshot":
+                onlineUsers.setAll((JSONArray) presence.get("users"));
+                break;
+            case "join":
+                if (!onlineUsers.contains(userName)) {
+                    onlineUsers.add(userName);
+                    FXCollections.sort(onlineUsers);
+                }
+                break;
+            case "leave":
+                onlineUsers.remove(userName);
+                break;
+            default:
+                break;
+        }
     }
 
     /**
@@ -765,8 +933,8 @@ public class CanvaController {
                     }
                 });
             } else if ("draw".equals(action)) {
-                double size = (double) json.get("size"); // Default size for shapes (adjust if needed)
-                String color = (String) json.get("color");
+                double size = ((Number) json.get("size")).doubleValue(); // checked by handleDrawingMessage
+                Color color = penColor(json);
                 // Handle freehand drawing or continuous drawing
                 // Add new coordinates to the freehand list
                 shapes.add(new FreehandShape(new ArrayList<>(tempPointsX), new ArrayList<>(tempPointsY), size));
@@ -776,7 +944,7 @@ public class CanvaController {
                     GraphicsContext gc = canvas.getGraphicsContext2D();
 
                     // Set the stroke color
-                    gc.setStroke(Color.web("#" + color.substring(2)));
+                    gc.setStroke(color);
                     gc.setLineWidth(size); // Use the pen size
 
                     // Start a new path (necessary if not already started)
@@ -813,6 +981,62 @@ public class CanvaController {
         }
     }
 
+    /**
+     * Draws one stroke segment received from the server as a continuous line.
+     * Uses {@code strokeLine} so the path of a stroke the local user is drawing is left untouched.
+     *
+     * @param json the {@code stroke} message with its color, size and flat list of points.
+     */
+    private void drawStrokeSegment(JSONObject json) {
+        Color color = penColor(json);
+        if (!(json.get("points") instanceof JSONArray) || !(json.get("size") instanceof Number) || color == null) {
+            System.out.println("Ignoring malformed stroke: " + json.toJSONString());
+            return;
+        }
+        JSONArray points = (JSONArray) json.get("points");
+        double size = ((Number) json.get("size")).doubleValue();
+        if (points.size() < 2) {
+            return;
+        }
+        List<Double> pointsX = new ArrayList<>();
+        List<Double> pointsY = new ArrayList<>();
+        for (int i = 0; i + 1 < points.size(); i += 2) {
+            if (!(points.get(i) instanceof Number) || !(points.get(i + 1) instanceof Number)) {
+                System.out.println("Ignoring malformed stroke: " + json.toJSONString());
+                return;
+            }
+            pointsX.add(((Number) points.get(i)).doubleValue());
+            pointsY.add(((Number) points.get(i + 1)).doubleValue());
+        }
+        shapes.add(new FreehandShape(pointsX, pointsY, size));
+
+        gc.save();
+        gc.setStroke(color);
+        gc.setLineWidth(size);
+        for (int i = 0; i < pointsX.size() - 1; i++) {
+            gc.strokeLine(pointsX.get(i), pointsY.get(i), pointsX.get(i + 1), pointsY.get(i + 1));
+        }
+        gc.restore();
+    }
+
+    /**
+     * Reads the pen color of a {@code draw} or {@code stroke} message, e.g. {@code 0x000000ff}.
+     *
+     * @param json the message.
+     * @return the color, or {@code null} if it is missing or malformed.
+     */
+    private static Color penColor(JSONObject json) {
+        Object color = json.get("color");
+        if (!(color instanceof String) || !((String) color).startsWith("0x")) {
+            return null;
+        }
+        try {
+            return Color.web("#" + ((String) color).substring(2));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     /**
      * Retrieves the primary {@code Canvas} object from the current scene hierarchy.
      *
@@ -875,7 +1099,22 @@ public class CanvaController {
         jsonObject.put("size", size);
 
         // Send the data to the server
-        out.println(jsonObject.toJSONString());
+        sendToDrawingServer(jsonObject);
+    }
+
+    /**
+     * Sends a JSON message to the drawing server, if connected.
+     *
+     * @param message the message to send.
+     */
+    private void sendToDrawingServer(JSONObject message) {
+        if (drawingClient != null) {
+            try {
+                drawingClient.send(message);
+            } catch (IOException e) {
+                System.out.println("Failed to send to the drawing server: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -909,7 +1148,7 @@ public class CanvaController {
         jsonObject.put("fillColor", shape.getFillColor() != null ? shape.getFillColor().toString() : "null");
 
         // Send the JSON object to the server
-        out.println(jsonObject.toJSONString());
+        sendToDrawingServer(jsonObject);
     }
     /**
      * Sends text data to the server in JSON format.
@@ -957,7 +1196,7 @@ public class CanvaController {
      */
     private void sendSaveRequestToServer(JSONObject canvasData) {
         try {
-            out.println(canvasData.toJSONString());
+            sendToDrawingServer(canvasData);
             System.out.println("Canvas data sent to server for saving.");
         } catch (Exception e) {
             e.printStackTrace();
@@ -1040,11 +1279,13 @@ public class CanvaController {
     /**
      * Connects to the messaging server at the specified host and port.
      *
-     * @param host the server's hostname or IP address.
-     * @param port the server's port number.
+     * @param host     the server's hostname or IP address.
+     * @param port     the server's port number.
+     * @param userName the name of the logged in user.
+     * @param token    the session token from the login, or {@code null}.
      */
     // Method to connect to the server
-    public void connectToServerMesseging(String host, int port) {
+    public void connectToServerMesseging(String host, int port, String userName, String token) {
         try {
             // Establish the connection to the server
             socket1 = new Socket(host, port);
@@ -1053,6 +1294,15 @@ public class CanvaController {
             out1 = new PrintWriter(socket1.getOutputStream(), true);
             in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
 
+            // Say who we are before chatting
+            JSONObject hello = new JSONObject();
+            hello.put("action", "hello");
+            hello.put("username", userName);
+            if (token != null) {
+                hello.put("token", token);
+            }
+            out1.println(hello.toJSONString());
+
 
             // Once connected, log a success message
             System.out.println("Connected to server at " + host + ":" + port);
@@ -1080,7 +1330,16 @@ public class CanvaController {
                     JSONParser parser = new JSONParser();
                     try {
                         JSONObject object = (JSONObject) parser.parse(message);
-                        appendMessageToTextArea((String) object.get("text"));
+                        if ("ping".equals(object.get("action"))) {
+                            out1.println(Liveness.pongFor(object).toJSONString());
+                            continue;
+                        }
+                        if ("control".equals(object.get("action"))) {
+                            appendMessageToTextArea("shutdown".equals(object.get("type"))
+                                    ? "Server is restarting" : "Slow down: message not sent");
+                        } else {
+                            appendMessageToTextArea((String) object.get("text"));
+                        }
                     } catch (ParseException parseException) {
                         parseException.printStackTrace();
                     }
@@ -1092,51 +1351,34 @@ public class CanvaController {
     }
 
     /**
-     * Displays the list of online clients by reading data from a local JSON file.
+     * Starts listening for chat messages on a multiplexed connection, until it closes.
+     *
+     * @param chat the connection.
      */
-    public void showOnlineClients() {
-        File file = new File("E:/JAVA/CollaboCanvas/DataFile.json");
-        System.out.println("clients added");
-        // Ensure the file exists before attempting to read it
-        if (!file.exists()) {
-            System.out.println("File not found: " + file.getAbsolutePath());
-            return;
-        }
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            // Use a JSONParser to parse each line
+    private void startListeningMux(MuxClient chat) {
+        new Thread(() -> {
             JSONParser parser = new JSONParser();
-            ObservableList<String> clientList = FXCollections.observableArrayList(); // List to hold usernames
-            String str;
-
-            while ((str = reader.readLine()) != null) {
-                System.out.println("clients read");
-                try {
-                    // Parse the JSON object for each line
-                    JSONObject jsonObject = (JSONObject) parser.parse(str);
-                    String username = (String) jsonObject.get("Username");
-                    System.out.println("usernae " + username);
-                    // Add the username to the ObservableList
-                    if (username != null) {
-                        clientList.add(username);
+            try {
+                byte[] message;
+                while ((message = chat.receive(MuxProtocol.CHAT)) != null) {
+                    try {
+                        JSONObject object = (JSONObject) parser.parse(new String(message, StandardCharsets.UTF_8));
+                        if ("control".equals(object.get("action"))) {
+                            appendMessageToTextArea("shutdown".equals(object.get("type"))
+                                    ? "Server is restarting" : "Slow down: message not sent");
+                        } else {
+                            appendMessageToTextArea((String) object.get("text"));
+                        }
+                    } catch (ParseException parseException) {
+                        parseException.printStackTrace();
                     }
-                } catch (ParseException e) {
-                    System.out.println("Error parsing line: " + str);
                 }
+            } catch (IOException e) {
+                System.out.println("Error reading from server: " + e.getMessage());
             }
-
-            // Update the ListView on the JavaFX Application Thread
-            Platform.runLater(() -> {
-                connectedClientList.setItems(clientList);  // Set the list of usernames to the ListView
-                for (String client : connectedClientList.getItems()) {
-                    System.out.println(client);
-                }
-            });
-        } catch (IOException e) {
-            System.out.println("Error reading the file: " + file.getAbsolutePath());
-            e.printStackTrace();
-        }
+        }).start();
     }
+
 }
 
 
@@ -0,0 +1,367 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The server's model of one canvas, built from the drawing events it relays.
+ * Late joiners receive it as {@code snapshot} messages:
+ * <pre>{"action":"snapshot","events":[...],"seq":42}</pre>
+ * where {@code events} replays the canvas in order. Stroke segments that belong to the same
+ * stroke are merged into one event, and runs of loose {@code draw} points from one client
+ * are folded into a stroke, so the snapshot stays compact. A canvas larger than
+ * {@link ServerConfig#SNAPSHOT_CHUNK_BYTES} is sent in several messages that carry
+ * {@code "part"} and {@code "parts"}; clients clear the canvas only for the first one.
+ * The model is kept within {@link ServerConfig#CANVAS_MAX_BYTES} by dropping the oldest
+ * drawing. The snapshot is cached and only rebuilt after the canvas changed.
+ * <p>
+ * Every recorded event is stamped with the next sequence number of the canvas, and the most
+ * recent ones are kept in a bounded log. A client that reconnects with the last sequence
+ * number it saw gets only the events it missed, or a snapshot if they are no longer logged.
+ * The snapshot carries the sequence number it is current up to.
+ * </p>
+ * <p>
+ * Callers synchronize on the instance around {@link #record(Frame)} plus the relay of the
+ * same frame, and around {@link #snapshot()} plus adding the new client, so a joining client
+ * sees every event exactly once: either in its snapshot or as a relayed frame.
+ * </p>
+ */
+class CanvasState {
+    /** Recorded events merged into the model at once, so the pending list stays short without a snapshot. */
+    private static final int MERGE_BATCH = 1024;
+    /** Points after which a merged stroke continues in a new event, so no event outgrows a snapshot part. */
+    private static final int MAX_STROKE_POINTS = 8192;
+    /** Largest distance (in pixels) between loose draw points that are folded into one stroke. */
+    private static final double MAX_FOLD_GAP = 48;
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>(); // relayed Frames and merged strokes
+    private final Map<String, Entry> strokes = new HashMap<>();
+    private final List<Frame> pending = new ArrayList<>(); // recorded but not yet merged into entries
+    private final ArrayDeque<Frame> log = new ArrayDeque<>();
+    private long bytes; // approximate encoded size of entries
+    private boolean trimmed;
+    private Entry dots; // the entry the sender's next loose draw point may be folded into
+    private DrawingPeer dotsSender;
+    private long seq;
+    private long snapshotSeq = -1;
+    private List<Frame> snapshot;
+
+    /**
+     * One event of the model with its approximate encoded size.
+     */
+    private static final class Entry {
+        Object event; // a Frame, or a merged stroke as a JSONObject
+        long bytes;
+
+        Entry(Object event, long bytes) {
+            this.event = event;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Records a relayed drawing event. Cheap: events are merged in batches, or when a snapshot
+     * is needed.
+     * Malformed events are rejected here, so one bad line can neither reach the other clients
+     * nor break the snapshot and the log for every late joiner. Stroke segments are parsed to
+     * check their fields, as they are merged later.
+     *
+     * @param frame the drawing event.
+     * @return the event stamped with its sequence number; this is the frame to relay. {@code null}
+     * if the event is malformed and must be dropped.
+     */
+    synchronized Frame record(Frame frame) {
+        if (!frame.isWellFormed() || ("stroke".equals(frame.getAction()) && !isStroke(frame.getMessage()))) {
+            return null;
+        }
+        Frame stamped = frame.withSeq(++seq);
+        pending.add(stamped);
+        if (log.size() == ServerConfig.CANVAS_LOG_SIZE) {
+            log.pollFirst();
+        }
+        log.addLast(stamped);
+        if (pending.size() >= MERGE_BATCH) {
+            mergePending();
+        }
+        return stamped;
+    }
+
+    /**
+     * Gets the events recorded after a given sequence number.
+     *
+     * @param lastSeq the last sequence number the client has seen.
+     * @return the missed events in order, or {@code null} if some of them are no longer logged
+     * or the client is ahead of this canvas (e.g. the server restarted).
+     */
+    synchronized List<Frame> since(long lastSeq) {
+        if (lastSeq > seq || (lastSeq < seq && log.isEmpty())) {
+            return null;
+        }
+        if (!log.isEmpty() && log.peekFirst().getSeq() > lastSeq + 1) {
+            return null; // trimmed
+        }
+        List<Frame> missed = new ArrayList<>();
+        for (Iterator<Frame> it = log.descendingIterator(); it.hasNext(); ) {
+            Frame frame = it.next();
+            if (frame.getSeq() <= lastSeq) {
+                break;
+            }
+            missed.add(frame);
+        }
+        Collections.reverse(missed);
+        return missed;
+    }
+
+    /**
+     * Gets the snapshot of the canvas, rebuilding it only if the canvas changed.
+     *
+     * @return the snapshot messages, to be sent in order.
+     */
+    synchronized List<Frame> snapshot() {
+        if (snapshotSeq != seq) {
+            mergePending();
+            snapshot = buildSnapshot();
+            snapshotSeq = seq;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Loads a canvas saved by an earlier run of the server into this empty canvas.
+     * Numbering continues from the saved sequence number, so clients that reconnect after a
+     * restart get a snapshot only if they missed something.
+     *
+     * @param saved a snapshot message written before the restart; a canvas saved in several
+     *              parts is restored by calling this for each of them in order.
+     */
+    synchronized void restore(JSONObject saved) {
+        for (Object event : (JSONArray) saved.get("events")) {
+            JSONObject message = (JSONObject) event;
+            Entry entry = new Entry(message, Frame.encodeLine(message).length);
+            if ("stroke".equals(message.get("action")) && message.get("strokeId") instanceof String) {
+                strokes.put((String) message.get("strokeId"), entry);
+            }
+            add(entry);
+        }
+        seq = ((Number) saved.get("seq")).longValue();
+        snapshotSeq = -1;
+    }
+
+    /**
+     * Checks the fields of a {@code stroke} segment: a string id and color, a numeric pen size
+     * and a flat list of numeric x, y coordinates.
+     *
+     * @param message the parsed segment, or {@code null} if it could not be parsed.
+     * @return {@code true} if the segment can be merged and drawn.
+     */
+    static boolean isStroke(JSONObject message) {
+        if (message == null || !(message.get("strokeId") instanceof String) || !(message.get("color") instanceof String)
+                || !(message.get("size") instanceof Number) || !(message.get("points") instanceof JSONArray)) {
+            return false;
+        }
+        JSONArray points = (JSONArray) message.get("points");
+        if (points.size() % 2 != 0) {
+            return false;
+        }
+        for (Object coordinate : points) {
+            if (!(coordinate instanceof Number)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves pending events into the model. Events are only removed from {@code pending} once
+     * merged, so a failure part way leaves the rest to be merged by the next snapshot.
+     */
+    private void mergePending() {
+        int merged = 0;
+        try {
+            for (Frame frame : pending) {
+                merge(frame);
+                merged++;
+            }
+        } finally {
+            pending.subList(0, merged).clear();
+        }
+    }
+
+    /**
+     * Adds one recorded event to the model, appending a stroke segment to its stroke.
+     */
+    private void merge(Frame frame) {
+        if ("draw".equals(frame.getAction())) {
+            fold(frame);
+            return;
+        }
+        if (!"stroke".equals(frame.getAction())) {
+            add(new Entry(frame, frame.toJsonLine().length));
+            return;
+        }
+        JSONObject segment = frame.getMessage(); // checked by record
+        String strokeId = (String) segment.get("strokeId");
+        JSONArray points = (JSONArray) segment.get("points");
+        Entry entry = strokes.get(strokeId);
+        if (entry == null || pointsOf(entry).size() >= 2 * MAX_STROKE_POINTS) {
+            // A new stroke, or a long one continuing in a new event from its last point
+            JSONObject stroke = new JSONObject();
+            stroke.putAll(segment);
+            stroke.put("points", new JSONArray());
+            ((JSONArray) stroke.get("points")).addAll(points);
+            entry = new Entry(stroke, frame.toJsonLine().length);
+            strokes.put(strokeId, entry);
+            add(entry);
+        } else {
+            // Later segments repeat the previous segment's last point; skip it
+            pointsOf(entry).addAll(points.subList(Math.min(2, points.size()), points.size()));
+            ((JSONObject) entry.event).put("seq", segment.get("seq"));
+            grow(entry, frame.toJsonLine().length);
+        }
+    }
+
+    /**
+     * Adds a loose {@code draw} point, folding it into a stroke with the sender's previous
+     * point if nothing else was drawn in between and the two are close together.
+     */
+    private void fold(Frame frame) {
+        JSONObject point = frame.getMessage();
+        boolean foldable = frame.getSender() != null && point != null && point.get("x") instanceof Number
+                && point.get("y") instanceof Number && point.get("color") instanceof String
+                && point.get("size") instanceof Number;
+        Entry last = entries.peekLast();
+        if (foldable && last != null && last == dots && frame.getSender() == dotsSender) {
+            JSONObject run = last.event instanceof Frame ? ((Frame) last.event).getMessage() : (JSONObject) last.event;
+            JSONArray points = last.event instanceof Frame ? null : pointsOf(last);
+            double lastX = ((Number) (points != null ? points.get(points.size() - 2) : run.get("x"))).doubleValue();
+            double lastY = ((Number) (points != null ? points.get(points.size() - 1) : run.get("y"))).doubleValue();
+            double x = ((Number) point.get("x")).doubleValue();
+            double y = ((Number) point.get("y")).doubleValue();
+            if (point.get("color").equals(run.get("color"))
+                    && ((Number) point.get("size")).doubleValue() == ((Number) run.get("size")).doubleValue()
+                    && Math.hypot(x - lastX, y - lastY) <= MAX_FOLD_GAP) {
+                if (points == null) {
+                    last.event = run = strokeOf(run, ((Frame) last.event).getSeq());
+                    points = (JSONArray) run.get("points");
+                }
+                points.add(point.get("x"));
+                points.add(point.get("y"));
+                run.put("seq", frame.getSeq());
+                grow(last, point.get("x").toString().length() + point.get("y").toString().length() + 2);
+                if (points.size() >= 2 * MAX_STROKE_POINTS) {
+                    dots = null;
+                }
+                return;
+            }
+        }
+        Entry entry = new Entry(frame, frame.toJsonLine().length);
+        add(entry);
+        dots = foldable ? entry : null;
+        dotsSender = frame.getSender();
+    }
+
+    /**
+     * Turns a loose draw point into a one-point stroke that further points can be added to.
+     */
+    private static JSONObject strokeOf(JSONObject point, long seq) {
+        JSONObject stroke = new JSONObject();
+        stroke.put("action", "stroke");
+        stroke.put("strokeId", "draw-" + seq);
+        stroke.put("color", point.get("color"));
+        stroke.put("size", point.get("size"));
+        JSONArray points = new JSONArray();
+        points.add(point.get("x"));
+        points.add(point.get("y"));
+        stroke.put("points", points);
+        stroke.put("seq", seq);
+        return stroke;
+    }
+
+    private static JSONArray pointsOf(Entry stroke) {
+        return (JSONArray) ((JSONObject) stroke.event).get("points");
+    }
+
+    private void add(Entry entry) {
+        entries.addLast(entry);
+        bytes += entry.bytes;
+        trim();
+    }
+
+    private void grow(Entry entry, long by) {
+        entry.bytes += by;
+        bytes += by;
+        trim();
+    }
+
+    /**
+     * Drops the oldest events until the model fits {@link ServerConfig#CANVAS_MAX_BYTES}.
+     * The newest event is always kept.
+     */
+    private void trim() {
+        while (bytes > ServerConfig.CANVAS_MAX_BYTES && entries.size() > 1) {
+            Entry oldest = entries.pollFirst();
+            bytes -= oldest.bytes;
+            if (oldest.event instanceof JSONObject) {
+                Object strokeId = ((JSONObject) oldest.event).get("strokeId");
+                strokes.remove(strokeId, oldest);
+            }
+            if (oldest == dots) {
+                dots = null;
+            }
+            if (!trimmed) {
+                trimmed = true;
+                Log.warn("Canvas reached " + ServerConfig.CANVAS_MAX_BYTES + " bytes, dropping its oldest drawing");
+            }
+        }
+    }
+
+    /**
+     * Encodes the model as snapshot messages of at most {@link ServerConfig#SNAPSHOT_CHUNK_BYTES}
+     * each, unless a single event is larger.
+     */
+    private List<Frame> buildSnapshot() {
+        List<ByteArrayOutputStream> parts = new ArrayList<>();
+        ByteArrayOutputStream events = new ByteArrayOutputStream();
+        for (Entry entry : entries) {
+            byte[] event = entry.event instanceof Frame
+                    ? ((Frame) entry.event).toJsonLine()
+                    : Frame.encodeLine((JSONObject) entry.event);
+            if (event.length <= 1) {
+                continue; // not a valid message
+            }
+            if (events.size() > 0 && events.size() + event.length > ServerConfig.SNAPSHOT_CHUNK_BYTES) {
+                parts.add(events);
+                events = new ByteArrayOutputStream();
+            }
+            if (events.size() > 0) {
+                events.write(',');
+            }
+            events.write(event, 0, event.length - 1); // without the newline
+        }
+        parts.add(events);
+
+        List<Frame> frames = new ArrayList<>();
+        byte[] head = "{\"action\":\"snapshot\",\"events\":[".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < parts.size(); i++) {
+            String part = parts.size() > 1 ? ",\"part\":" + i + ",\"parts\":" + parts.size() : "";
+            byte[] tail = ("],\"seq\":" + seq + part + "}\n").getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(head.length + parts.get(i).size() + tail.length);
+            out.write(head, 0, head.length);
+            byte[] body = parts.get(i).toByteArray();
+            out.write(body, 0, body.length);
+            out.write(tail, 0, tail.length);
+            frames.add(new Frame(out.toByteArray(), "snapshot", null));
+        }
+        return Collections.unmodifiableList(frames);
+    }
+}
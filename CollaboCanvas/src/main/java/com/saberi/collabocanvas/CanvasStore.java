@@ -0,0 +1,107 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * Keeps room canvases in {@link ServerConfig#CANVAS_DIR} across restarts, one
+ * {@code <room>.json} snapshot per room, so a rolling restart does not wipe the boards.
+ * A canvas sent in several snapshot parts is saved as one part per line.
+ * Room names are limited to letters, digits, {@code _} and {@code -}, so they are safe file names.
+ */
+final class CanvasStore {
+    private CanvasStore() {
+    }
+
+    /**
+     * Creates a room, restoring its canvas if one was saved.
+     *
+     * @param name the name of the room.
+     * @return the room.
+     */
+    static Room load(String name) {
+        Room room = new Room(name);
+        File file = fileOf(name);
+        if (file == null || !file.isFile()) {
+            return room;
+        }
+        try {
+            JSONParser parser = new JSONParser();
+            for (String saved : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (!saved.isEmpty()) {
+                    room.getCanvas().restore((JSONObject) parser.parse(saved));
+                }
+            }
+            Log.info("Restored canvas of room " + name + " from " + file);
+        } catch (IOException | ParseException | ClassCastException | NullPointerException e) {
+            Log.warn("Could not restore canvas of room " + name + ", starting empty", e);
+        }
+        return room;
+    }
+
+    /**
+     * Writes a room's canvas. The file is replaced only once the new one is complete.
+     *
+     * @param room the room.
+     */
+    static void save(Room room) {
+        File file = fileOf(room.getName());
+        if (file == null) {
+            return;
+        }
+        try {
+            file.getParentFile().mkdirs();
+            File partial = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partial.toPath()))) {
+                for (Frame part : room.getCanvas().snapshot()) {
+                    out.write(part.toJsonLine());
+                }
+            }
+            Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.warn("Could not save canvas of room " + room.getName(), e);
+        }
+    }
+
+    /**
+     * Gets the id this node keeps next to its canvases, creating it on first use. The saved
+     * canvases continue their event numbering after a restart, so the node keeps its id too.
+     *
+     * @return the node id; random and not kept if there is no canvas directory or it cannot
+     * be written.
+     */
+    static String nodeId() {
+        if (!ServerConfig.CANVAS_DIR.isEmpty()) {
+            File file = new File(ServerConfig.CANVAS_DIR, "node.id");
+            try {
+                if (file.isFile()) {
+                    String saved = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+                    if (!saved.isEmpty()) {
+                        return saved;
+                    }
+                }
+                String generated = UUID.randomUUID().toString().substring(0, 8);
+                file.getParentFile().mkdirs();
+                Files.write(file.toPath(), generated.getBytes(StandardCharsets.UTF_8));
+                return generated;
+            } catch (IOException e) {
+                Log.warn("Could not keep the node id in " + file + ", using a temporary one", e);
+            }
+        }
+        return UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    private static File fileOf(String room) {
+        return ServerConfig.CANVAS_DIR.isEmpty() ? null : new File(ServerConfig.CANVAS_DIR, room + ".json");
+    }
+}
@@ -0,0 +1,14 @@
+package com.saberi.collabocanvas;
+
+/**
+ * A client connected to the chat, either on its own socket or over the multiplexed connection.
+ */
+interface ChatPeer {
+    /**
+     * Sends an already encoded line to the client. Must not block: called while the chat is
+     * broadcast to every client.
+     *
+     * @param line the UTF-8 line, including its terminator; shared with other recipients and never modified.
+     */
+    void sendLine(byte[] line);
+}
@@ -0,0 +1,230 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Joins this drawing server node to the other nodes through a {@link ClusterBus}
+ * ({@code -Dcollabocanvas.cluster.bus=tcp} or {@code inprocess}; off by default).
+ * <p>
+ * Drawing events from local clients are published with this node's id and a per-node
+ * message number. Events from other nodes are relayed to local clients only, never
+ * published again, so nothing loops; a message number at or below the last one seen
+ * from its node is a duplicate and dropped. Each node also publishes its online users on
+ * every change and every few seconds, and {@link #getOnlineUsers()} merges them; a node
+ * that stops publishing drops out after three intervals. Changes in another node's users,
+ * including all of them going when it drops out, are passed on to local clients through
+ * {@link Presence}.
+ * </p>
+ */
+final class Cluster {
+    private static volatile ClusterBus bus;
+    // Starts from the clock, so a node restarted under the same id keeps counting upwards
+    private static final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() * 1000);
+    private static final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private static final Map<String, RemoteUsers> remoteUsers = new ConcurrentHashMap<>();
+
+    private Cluster() {
+    }
+
+    /**
+     * Connects to the configured bus, if any, and starts publishing presence.
+     */
+    static void start() {
+        ClusterBus configured;
+        if ("tcp".equals(ServerConfig.CLUSTER_BUS)) {
+            if (ServerConfig.CLUSTER_BROKER_PORT > 0) {
+                Thread broker = new Thread(new TcpClusterBus.Broker(ServerConfig.CLUSTER_BROKER_PORT), "cluster-broker");
+                broker.setDaemon(true);
+                broker.start();
+            }
+            String[] address = ServerConfig.CLUSTER_BROKER.split(":");
+            configured = new TcpClusterBus(address[0], Integer.parseInt(address[1]));
+        } else if ("inprocess".equals(ServerConfig.CLUSTER_BUS)) {
+            configured = new InProcessBus();
+        } else {
+            return;
+        }
+        try {
+            configured.start(Cluster::onMessage);
+        } catch (IOException e) {
+            Log.warn("Cluster bus unavailable, running standalone: " + e.getMessage());
+            return;
+        }
+        bus = configured;
+        Log.info("Node " + ServerConfig.NODE_ID + " joined the cluster over the " + ServerConfig.CLUSTER_BUS + " bus");
+
+        Thread heartbeat = new Thread(() -> {
+            try {
+                while (true) {
+                    publishPresence();
+                    expireNodes();
+                    Thread.sleep(ServerConfig.CLUSTER_PRESENCE_SECONDS * 1000L);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "cluster-presence");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
+    /**
+     * Leaves the cluster; other nodes drop this node's users once its presence expires.
+     */
+    static void stop() {
+        ClusterBus current = bus;
+        bus = null;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * Publishes a drawing event a local client sent to a room.
+     *
+     * @param room  the room the event was relayed in.
+     * @param frame the event.
+     */
+    static void publishEvent(Room room, Frame frame) {
+        ClusterBus current = bus;
+        if (current != null) {
+            byte[] line = frame.toJsonLine();
+            if (line.length > 0) {
+                current.publish(new ClusterBus.Message(ServerConfig.NODE_ID, nextId.incrementAndGet(),
+                        ClusterBus.KIND_EVENT, room.getName(), line));
+            }
+        }
+    }
+
+    /**
+     * Publishes the users online on this node.
+     */
+    static void publishPresence() {
+        ClusterBus current = bus;
+        if (current != null) {
+            JSONArray users = new JSONArray();
+            synchronized (drawingServer.onlineUsers) {
+                users.addAll(drawingServer.onlineUsers.keySet());
+            }
+            current.publish(new ClusterBus.Message(ServerConfig.NODE_ID, nextId.incrementAndGet(),
+                    ClusterBus.KIND_PRESENCE, "", users.toJSONString().getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Gets the users online on any node.
+     *
+     * @return the merged user names, sorted.
+     */
+    static Set<String> getOnlineUsers() {
+        Set<String> users = new TreeSet<>();
+        synchronized (drawingServer.onlineUsers) {
+            users.addAll(drawingServer.onlineUsers.keySet());
+        }
+        expireNodes();
+        for (RemoteUsers remote : remoteUsers.values()) {
+            users.addAll(remote.users);
+        }
+        return users;
+    }
+
+    /**
+     * Checks whether a user is online on another node.
+     *
+     * @param userName  the user's name.
+     * @param exceptNode a node to leave out, e.g. the one whose users just changed, or {@code null}.
+     * @return {@code true} if a node other than this one and {@code exceptNode} has the user.
+     */
+    static boolean isOnlineRemotely(String userName, String exceptNode) {
+        long expired = expiry();
+        for (Map.Entry<String, RemoteUsers> entry : remoteUsers.entrySet()) {
+            RemoteUsers remote = entry.getValue();
+            if (!entry.getKey().equals(exceptNode) && remote.receivedAt >= expired && remote.users.contains(userName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the nodes that stopped publishing presence, and tells local clients their users left.
+     */
+    private static void expireNodes() {
+        long expired = expiry();
+        for (Map.Entry<String, RemoteUsers> entry : remoteUsers.entrySet()) {
+            RemoteUsers remote = entry.getValue();
+            if (remote.receivedAt < expired && remoteUsers.remove(entry.getKey(), remote)) {
+                Log.info("Node " + entry.getKey() + " stopped publishing presence");
+                Presence.remoteChanged(entry.getKey(), remote.users, Collections.emptySet());
+            }
+        }
+    }
+
+    private static long expiry() {
+        return System.currentTimeMillis() - 3_000L * ServerConfig.CLUSTER_PRESENCE_SECONDS;
+    }
+
+    /**
+     * Handles a message from another node.
+     *
+     * @param message the message.
+     */
+    private static void onMessage(ClusterBus.Message message) {
+        if (ServerConfig.NODE_ID.equals(message.origin)) {
+            return; // our own message came back
+        }
+        // Buses deliver on a single thread, in the order each node published
+        Long last = lastSeen.get(message.origin);
+        if (last != null && message.id <= last) {
+            return; // duplicate
+        }
+        lastSeen.put(message.origin, message.id);
+        if (message.kind == ClusterBus.KIND_EVENT) {
+            byte[] line = message.payload;
+            String action = ActionScanner.peekAction(line, 0, line.length - 1);
+            // No local sender: goes to every local member and is not published again
+            Frame event = new Frame(line, action, null);
+            Room room;
+            do {
+                room = drawingServer.getRoom(message.room);
+                if (room == null) {
+                    Log.warn("Dropping event for room " + message.room + ": too many rooms open");
+                    return;
+                }
+            } while (!room.relay(event, null));
+        } else if (message.kind == ClusterBus.KIND_PRESENCE) {
+            try {
+                JSONArray users = (JSONArray) new JSONParser().parse(new String(message.payload, StandardCharsets.UTF_8));
+                Set<String> names = new TreeSet<>();
+                for (Object user : users) {
+                    names.add(String.valueOf(user));
+                }
+                RemoteUsers previous = remoteUsers.put(message.origin, new RemoteUsers(names, System.currentTimeMillis()));
+                Presence.remoteChanged(message.origin, previous != null ? previous.users : null, names);
+            } catch (ParseException | ClassCastException e) {
+                Log.warn("Invalid presence from node " + message.origin);
+            }
+        }
+    }
+
+    private static final class RemoteUsers {
+        final Set<String> users;
+        final long receivedAt;
+
+        RemoteUsers(Set<String> users, long receivedAt) {
+            this.users = users;
+            this.receivedAt = receivedAt;
+        }
+    }
+}
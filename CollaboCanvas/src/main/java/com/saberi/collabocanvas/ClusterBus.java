@@ -0,0 +1,103 @@
+package com.saberi.collabocanvas;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Carries traffic between drawing server nodes, so clients connected to different nodes
+ * can share a room. Implementations deliver every published message to every other node
+ * and never back to the publisher; {@link Cluster} tags and de-duplicates messages on top,
+ * so a bus may deliver a message twice without it reaching clients twice.
+ */
+interface ClusterBus {
+    /** A drawing event relayed in a room; the payload is its JSON line. */
+    byte KIND_EVENT = 1;
+    /** The users online on the origin node; the payload is a JSON array of names. */
+    byte KIND_PRESENCE = 2;
+
+    /**
+     * Starts delivering messages from other nodes.
+     *
+     * @param listener called for every message, on a thread owned by the bus.
+     * @throws IOException if the bus cannot be reached.
+     */
+    void start(Consumer<Message> listener) throws IOException;
+
+    /**
+     * Sends a message to all other nodes. Never blocks on the network.
+     *
+     * @param message the message.
+     */
+    void publish(Message message);
+
+    /**
+     * Stops the bus.
+     */
+    void close();
+
+    /**
+     * One message on the bus.
+     */
+    final class Message {
+        final String origin;
+        final long id;
+        final byte kind;
+        final String room;
+        final byte[] payload;
+
+        /**
+         * Constructs a new message.
+         *
+         * @param origin  the node that published the message.
+         * @param id      the message's number, increasing per origin node.
+         * @param kind    {@link #KIND_EVENT} or {@link #KIND_PRESENCE}.
+         * @param room    the room of an event, empty for presence.
+         * @param payload the content; never modified.
+         */
+        Message(String origin, long id, byte kind, String room, byte[] payload) {
+            this.origin = origin;
+            this.id = id;
+            this.kind = kind;
+            this.room = room;
+            this.payload = payload;
+        }
+
+        /**
+         * Writes the message to a stream.
+         *
+         * @param out the stream.
+         * @throws IOException if writing fails.
+         */
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(origin);
+            out.writeLong(id);
+            out.writeByte(kind);
+            out.writeUTF(room);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+
+        /**
+         * Reads a message written by {@link #writeTo}.
+         *
+         * @param in the stream.
+         * @return the message.
+         * @throws IOException if reading fails or the stream ends.
+         */
+        static Message readFrom(DataInputStream in) throws IOException {
+            String origin = in.readUTF();
+            long id = in.readLong();
+            byte kind = in.readByte();
+            String room = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > ServerConfig.DRAWING_MAX_LINE_BYTES) {
+                throw new IOException("Invalid bus message length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return new Message(origin, id, kind, room, payload);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.saberi.collabocanvas;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run one blocking handler per connection.
+ * Depending on {@link ServerConfig#THREAD_MODE} every handler gets its own platform
+ * thread (the original behaviour) or its own virtual thread, so both can be compared
+ * under the same load without touching the handler code.
+ */
+final class ConnectionThreads {
+
+    private ConnectionThreads() {
+    }
+
+    /**
+     * Creates an executor that starts a new thread for every submitted connection handler.
+     *
+     * @param name the name prefix for platform threads, e.g. {@code "chat"}.
+     * @return an executor for connection handlers.
+     */
+    static Executor newExecutor(String name) {
+        if ("virtual".equals(ServerConfig.THREAD_MODE)) {
+            Executor virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                Log.info(name + " handlers run on virtual threads");
+                return virtual;
+            }
+            Log.warn("Virtual threads need Java 21 or later, " + name + " handlers use platform threads");
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return task -> new Thread(task, name + "-" + counter.incrementAndGet()).start();
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor()} reflectively so the
+     * project still builds and runs on older JDKs.
+     *
+     * @return a virtual thread executor, or {@code null} if the runtime has none.
+     */
+    private static Executor newVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
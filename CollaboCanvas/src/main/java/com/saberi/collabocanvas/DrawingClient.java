@@ -0,0 +1,222 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client side of the drawing channel.
+ * Connects, performs the {@code hello}/{@code welcome} handshake and then sends and receives
+ * messages in whichever protocol the server picked, so callers only ever see JSON objects.
+ * Remembers the sequence number of the last canvas event received, and the node that
+ * numbered it, so a new connection can ask the server for only the events it missed. Runs over its own socket or over the drawing
+ * channel of a {@link MuxClient}. The session token from the login is sent with every
+ * handshake, so reconnecting does not need to log in again.
+ */
+class DrawingClient {
+    // Either the own socket or the multiplexed connection is set
+    private final Socket socket;
+    private final FrameReader reader;
+    private final OutputStream out;
+    private final MuxClient mux;
+    private final JSONParser parser = new JSONParser();
+    private final boolean binary;
+    private volatile long lastSeq;
+    private volatile String node; // the server node named in the welcome
+
+    /**
+     * Connects to the drawing server and performs the handshake.
+     *
+     * @param host         the server's hostname or IP address.
+     * @param port         the server's port number.
+     * @param userName     the name of the user.
+     * @param token        the session token from the login, or {@code null}.
+     * @param room         the room to draw in.
+     * @param preferBinary whether to offer the binary protocol.
+     * @param lastSeq      the last event seen on a previous connection, or {@code -1} for a fresh start.
+     * @param lastSeqNode  the node that numbered {@code lastSeq}, or {@code null}.
+     * @throws IOException if the connection or the handshake fails.
+     */
+    DrawingClient(String host, int port, String userName, String token, String room, boolean preferBinary,
+                  long lastSeq, String lastSeqNode) throws IOException {
+        this.lastSeq = lastSeq;
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        reader = new FrameReader(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+        mux = null;
+
+        reader.readLine(); // "Enter your username:"
+        out.write(Frame.encodeLine(hello(userName, token, room, preferBinary, lastSeq, lastSeqNode)));
+        out.flush();
+        binary = parseWelcome(reader.readLine());
+    }
+
+    /**
+     * Performs the handshake on the drawing channel of a multiplexed connection.
+     *
+     * @param mux          the multiplexed connection.
+     * @param userName     the name of the user.
+     * @param token        the session token from the login, or {@code null}.
+     * @param room         the room to draw in.
+     * @param preferBinary whether to offer the binary protocol.
+     * @param lastSeq      the last event seen on a previous connection, or {@code -1} for a fresh start.
+     * @param lastSeqNode  the node that numbered {@code lastSeq}, or {@code null}.
+     * @throws IOException if the handshake fails.
+     */
+    DrawingClient(MuxClient mux, String userName, String token, String room, boolean preferBinary,
+                  long lastSeq, String lastSeqNode) throws IOException {
+        this.lastSeq = lastSeq;
+        this.mux = mux;
+        socket = null;
+        reader = null;
+        out = null;
+        mux.send(MuxProtocol.DRAW, hello(userName, token, room, preferBinary, lastSeq, lastSeqNode).toJSONString().getBytes(StandardCharsets.UTF_8));
+        binary = parseWelcome(mux.receive(MuxProtocol.DRAW));
+    }
+
+    private static JSONObject hello(String userName, String token, String room, boolean preferBinary,
+                                    long lastSeq, String lastSeqNode) {
+        JSONObject hello = new JSONObject();
+        hello.put("action", "hello");
+        hello.put("username", userName);
+        if (token != null) {
+            hello.put("token", token);
+        }
+        hello.put("room", room);
+        JSONArray protocols = new JSONArray();
+        if (preferBinary) {
+            protocols.add(BinaryProtocol.NAME);
+        }
+        protocols.add(Handshake.JSON);
+        hello.put("protocols", protocols);
+        if (lastSeq >= 0) {
+            hello.put("lastSeq", lastSeq);
+            if (lastSeqNode != null) {
+                hello.put("lastSeqNode", lastSeqNode);
+            }
+        }
+        return hello;
+    }
+
+    /**
+     * Reads the protocol the server picked, and the node it runs on, from its reply to the handshake.
+     */
+    private boolean parseWelcome(byte[] reply) throws IOException {
+        if (reply == null) {
+            throw new IOException("Server closed the connection during the handshake");
+        }
+        try {
+            JSONObject welcome = (JSONObject) parser.parse(new String(reply, StandardCharsets.UTF_8));
+            node = welcome.get("node") instanceof String ? (String) welcome.get("node") : null;
+            return BinaryProtocol.NAME.equals(welcome.get("protocol"));
+        } catch (ParseException | ClassCastException e) {
+            throw new IOException("Unexpected handshake reply: " + new String(reply, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Sends a message to the server.
+     *
+     * @param message the message to send.
+     * @throws IOException if writing fails.
+     */
+    synchronized void send(JSONObject message) throws IOException {
+        byte[] encoded = binary ? BinaryProtocol.encode(message, null) : Frame.encodeLine(message);
+        if (mux != null) {
+            mux.send(MuxProtocol.DRAW, encoded);
+            return;
+        }
+        out.write(encoded);
+        out.flush();
+    }
+
+    /**
+     * Waits for the next message from the server. Messages that cannot be parsed are skipped,
+     * and pings are answered.
+     * Keeps track of the sequence number of canvas events and snapshots.
+     *
+     * @return the next message, or {@code null} once the connection is closed.
+     * @throws IOException if reading fails.
+     */
+    JSONObject receive() throws IOException {
+        while (true) {
+            try {
+                JSONObject message;
+                if (mux != null) {
+                    byte[] payload = mux.receive(MuxProtocol.DRAW);
+                    message = payload == null ? null
+                            : binary ? BinaryProtocol.decode(payload)
+                            : (JSONObject) parser.parse(new String(payload, StandardCharsets.UTF_8));
+                } else if (binary) {
+                    byte[] frame = reader.readBinaryFrame();
+                    message = frame == null ? null : BinaryProtocol.decode(frame);
+                } else {
+                    byte[] line = reader.readLine();
+                    message = line == null ? null : (JSONObject) parser.parse(new String(line, StandardCharsets.UTF_8));
+                }
+                if (message != null && "ping".equals(message.get("action"))) {
+                    send(Liveness.pongFor(message)); // answered here, callers never see heartbeats
+                    continue;
+                }
+                if (message != null && message.get("seq") instanceof Number) {
+                    long seq = ((Number) message.get("seq")).longValue();
+                    // A snapshot replaces the canvas, possibly one the server restarted with
+                    lastSeq = "snapshot".equals(message.get("action")) ? seq : Math.max(lastSeq, seq);
+                }
+                return message;
+            } catch (ParseException | ClassCastException e) {
+                Log.warn("Invalid message from server: " + e);
+            }
+        }
+    }
+
+    /**
+     * Gets the sequence number of the last canvas event received.
+     *
+     * @return the sequence number, or {@code -1} if none was received yet.
+     */
+    long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Gets the server node this client is connected to, which numbered {@link #getLastSeq()}.
+     *
+     * @return the node id, or {@code null} if the server did not name one.
+     */
+    String getNode() {
+        return node;
+    }
+
+    /**
+     * Checks whether the connection uses the binary protocol.
+     *
+     * @return {@code true} for the binary protocol.
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Closes the connection.
+     */
+    void close() {
+        if (mux != null) {
+            mux.close();
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing the drawing connection", e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A client connected to the drawing server, independent of the engine
+ * (blocking handler or NIO event loop) that serves it.
+ */
+interface DrawingPeer {
+    /**
+     * Queues a frame for the client. Never blocks on the network; a client whose
+     * queue overflows under the {@code DISCONNECT} policy is closed instead.
+     *
+     * @param frame the frame to send.
+     */
+    void send(Frame frame);
+
+    /**
+     * Sends a JSON message created by the server to the client.
+     *
+     * @param message the JSON message to send.
+     */
+    default void sendMessage(JSONObject message) {
+        send(new Frame(message, null));
+    }
+
+    /**
+     * Gets the username the client announced during the handshake.
+     *
+     * @return the username, or {@code null} before the handshake completed.
+     */
+    String getUserName();
+
+    /**
+     * Gets the room the client joined during the handshake.
+     *
+     * @return the room, or {@code null} before the handshake completed.
+     */
+    Room getRoom();
+
+    /**
+     * Gets how far delivery to the client is behind.
+     *
+     * @return how long the oldest queued frame has been waiting, in milliseconds.
+     */
+    long getLagMillis();
+
+    /**
+     * Gets how many frames for the client the overflow policy dropped.
+     *
+     * @return the number of dropped frames.
+     */
+    long getDroppedFrames();
+
+    /**
+     * Gets how many frames for the client were merged into others while it was lagging.
+     *
+     * @return the number of merged frames.
+     */
+    long getCoalescedFrames();
+
+    /**
+     * Gets the limits on what the client may send.
+     *
+     * @return the client's rate limiter, used only by the thread reading from the client.
+     */
+    RateLimiter getRateLimiter();
+
+    /**
+     * Gets the heartbeat state of the client.
+     *
+     * @return when the client was last heard from and its round-trip time.
+     */
+    Liveness getLiveness();
+
+    /**
+     * Checks whether every frame queued for the client has been handed to the network.
+     *
+     * @return {@code true} if nothing is waiting.
+     */
+    boolean isDrained();
+}
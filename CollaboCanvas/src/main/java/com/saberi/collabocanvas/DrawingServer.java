@@ -8,74 +8,523 @@ import org.json.simple.parser.ParseException;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 /**
  * The {@code drawingServer} class is responsible for managing a collaborative drawing server.
  * It handles client connections, broadcasting messages, and managing online users.
  */
 public class drawingServer {
-    private static Set<ClientHandler> clientHandlers = new HashSet<>();
-    static Set<String> onlineUsers = new HashSet<>();  // Track the online users by their names
+    // Each room has its own members and canvas
+    private static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    static Map<String, Integer> onlineUsers = new HashMap<>();  // Track the online users by their names, with their sessions
+    // Saves touch the disk, so they run here instead of on a connection or I/O thread
+    private static final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "canvas-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Runs a drawing server node on its own, e.g. a second node of a cluster on the same machine:
+     * {@code java -Dcollabocanvas.drawing.port=7778 -Dcollabocanvas.cluster.bus=tcp com.saberi.collabocanvas.drawingServer}
+     *
+     * @param args not used.
+     */
+    public static void main(String[] args) {
+        startDrawingServer();
+    }
 
     /**
      * Starts the drawing server and listens for incoming client connections on port 7777.
+     * Uses the NIO event loop unless {@code collabocanvas.drawing.engine} is set to {@code blocking}.
      */
     public static void startDrawingServer() {
-        try (ServerSocket serverSocket = new ServerSocket(7777)) {
-            System.out.println("Drawing Server started on port 7777");
+        Cluster.start();
+        if ("blocking".equals(ServerConfig.DRAWING_ENGINE)) {
+            startBlockingServer();
+            return;
+        }
+        try {
+            new NioDrawingServer(ServerConfig.DRAWING_PORT, ServerConfig.DRAWING_IO_THREADS).start();
+        } catch (IOException e) {
+            if (ServerLifecycle.isStopping()) {
+                Log.info("Drawing Server stopped");
+            } else {
+                Log.warn("Error in server", e);
+            }
+        }
+    }
+
+    /**
+     * Starts the thread-per-client drawing server.
+     */
+    private static void startBlockingServer() {
+        Executor handlers = ConnectionThreads.newExecutor("drawing");
+        try (ServerSocket serverSocket = new ServerSocket(ServerConfig.DRAWING_PORT)) {
+            ServerLifecycle.listening(serverSocket);
+            Log.info("Drawing Server started on port " + ServerConfig.DRAWING_PORT);
             while (true) {
                 Socket socket = serverSocket.accept();
-                System.out.println("New client connected!");
-                ClientHandler clientHandler = new ClientHandler(socket);
-                clientHandlers.add(clientHandler);
-                new Thread(clientHandler).start();
+                Log.info("New client connected!");
+                handlers.execute(new ClientHandler(socket, handlers));
             }
         } catch (IOException e) {
-            System.out.println("Error in server:");
-            e.printStackTrace();
+            if (ServerLifecycle.isStopping()) {
+                Log.info("Drawing Server stopped");
+            } else {
+                Log.warn("Error in server", e);
+            }
         }
     }
     /**
-     * Broadcasts a JSON message to all connected clients except the sender.
+     * Broadcasts a JSON message to all clients in the sender's room except the sender.
+     * Only queues the message for each client; the actual writes happen on the clients' writers.
      *
      * @param message the JSON message to broadcast.
      * @param sender  the client sending the message.
      */
-    public static void broadcast(JSONObject message, ClientHandler sender) {
-        synchronized (clientHandlers) {
-            for (ClientHandler client : clientHandlers) {
-                if (client != sender) {
-                    client.sendMessage(message);
+    public static void broadcast(JSONObject message, DrawingPeer sender) {
+        relay(new Frame(message, sender), sender);
+    }
+    /**
+     * Queues an already built frame for all clients in the sender's room except the sender.
+     *
+     * @param frame  the frame to relay.
+     * @param sender the client sending the frame.
+     */
+    private static void relay(Frame frame, DrawingPeer sender) {
+        Room room = sender.getRoom();
+        if (room != null) {
+            room.relay(frame, sender);
+        }
+    }
+    /**
+     * Gets a room by name, creating it on first use with the canvas saved by the last run.
+     * Once {@link ServerConfig#MAX_ROOMS} rooms are open no new one is created, and the empty
+     * rooms are queued for eviction.
+     *
+     * @param name the name of the room.
+     * @return the room, or {@code null} if there are too many rooms.
+     */
+    static Room getRoom(String name) {
+        Room room = rooms.get(name);
+        if (room != null) {
+            return room;
+        }
+        if (rooms.size() >= ServerConfig.MAX_ROOMS) {
+            for (Room open : rooms.values()) {
+                if (open.getMembers().isEmpty()) {
+                    evictLater(open);
                 }
             }
+            return null;
+        }
+        return rooms.computeIfAbsent(name, CanvasStore::load);
+    }
+    /**
+     * Queues an empty room to be saved and dropped from memory. Rooms are only evicted when
+     * their canvas can be saved, so a board kept in memory only survives everyone leaving it.
+     *
+     * @param room the room.
+     */
+    private static void evictLater(Room room) {
+        if (ServerConfig.CANVAS_DIR.isEmpty()) {
+            return;
+        }
+        try {
+            saveExecutor.execute(() -> evict(room));
+        } catch (RejectedExecutionException e) {
+            // Shutting down; saveRooms writes it
+        }
+    }
+    /**
+     * Saves a room and drops it if it is still empty. Runs on the save thread.
+     * The save happens while the map entry is held, so a lookup of the same room waits for
+     * the file and never loads an older canvas.
+     *
+     * @param room the room.
+     */
+    private static void evict(Room room) {
+        rooms.computeIfPresent(room.getName(), (name, current) -> {
+            if (current != room || !room.evict()) {
+                return current;
+            }
+            CanvasStore.save(room);
+            Log.info("Evicted empty room " + name);
+            return null;
+        });
+    }
+    /**
+     * Checks that a client's handshake may proceed, see {@link Handshake#isAuthorized()}.
+     * A client that may not is closed by its connection without joining a room.
+     *
+     * @param handshake the handshake the client sent.
+     * @return {@code true} if the client may join.
+     */
+    static boolean authorize(Handshake handshake) {
+        if (handshake.isAuthorized()) {
+            return true;
+        }
+        Log.info("Refused drawing connection for " + handshake.getUserName() + ": missing or invalid session token");
+        return false;
+    }
+    /**
+     * Completes a client's handshake: marks the user online, answers a {@code hello} with
+     * the chosen protocol, lets the client join the room it asked for and sends it who is
+     * online, see {@link Presence}.
+     *
+     * @param client    the client that finished its handshake.
+     * @param handshake the handshake the client sent.
+     * @return the room the client joined.
+     * @throws IOException if the room does not exist and no more rooms may be opened; the
+     *                     caller disconnects the client.
+     */
+    static Room join(DrawingPeer client, Handshake handshake) throws IOException {
+        Room room = getRoom(handshake.getRoom());
+        if (room == null) {
+            throw new IOException("Refused room " + handshake.getRoom() + ": " + ServerConfig.MAX_ROOMS + " rooms are open");
+        }
+        boolean cameOnline;
+        synchronized (onlineUsers) {
+            cameOnline = onlineUsers.merge(handshake.getUserName(), 1, Integer::sum) == 1;
+        }
+        Cluster.publishPresence();
+        if (handshake.isHello()) {
+            client.getLiveness().expectPongs(); // clients that send a hello answer pings
+            client.send(Frame.welcome(handshake.getProtocol()));
+        }
+        // An emptied room may be evicted between the lookup and the join; it is loaded again then
+        while (!room.join(client, handshake)) {
+            room = rooms.computeIfAbsent(handshake.getRoom(), CanvasStore::load);
+        }
+        if (cameOnline) {
+            Presence.joined(handshake.getUserName());
+        }
+        // After the room join, so no change is missed between the snapshot and the broadcasts
+        client.sendMessage(Presence.snapshot());
+        return room;
+    }
+    /**
+     * Handles one line received from a drawing client.
+     * Pass-through drawing events are recognised with {@link ActionScanner} and relayed as the
+     * original bytes; only messages the server acts on are parsed.
+     *
+     * @param buf    the buffer holding the line.
+     * @param off    the offset of the line in the buffer.
+     * @param len    the length of the line, without its terminator.
+     * @param sender the client that sent the line.
+     * @param parser the sender's JSON parser.
+     */
+    static void handleClientLine(byte[] buf, int off, int len, DrawingPeer sender, JSONParser parser) {
+        sender.getLiveness().heard();
+        long start = ServerMetrics.cpuTime();
+        String action = ServerConfig.RELAY_RAW ? ActionScanner.peekAction(buf, off, len) : null;
+        if (action != null && isPassThrough(action)) {
+            if (!admit(action, sender)) {
+                return;
+            }
+            byte[] line = Arrays.copyOfRange(buf, off, off + len + 1);
+            line[len] = '\n';
+            relay(new Frame(line, action, sender), sender);
+            ServerMetrics.relayedRaw.increment();
+            ServerMetrics.relayedRawCpuNanos.add(ServerMetrics.cpuTime() - start);
+            return;
+        }
+        try {
+            JSONObject obj = (JSONObject) parser.parse(new String(buf, off, len, StandardCharsets.UTF_8));
+            // Per-message logging is sampled and off by default: it would serialize every pen point again
+            Log.sample(Log.Level.DEBUG, () -> "Received: " + obj.toJSONString());
+            if (Liveness.isPong(obj)) {
+                sender.getLiveness().pong(obj);
+                return;
+            }
+            Object parsedAction = obj.get("action");
+            if (!admit(parsedAction instanceof String ? (String) parsedAction : null, sender)) {
+                return;
+            }
+
+            // Check if the request is a save action
+            if ("save".equals(obj.get("action"))) {
+                submitSave(obj, sender);
+            } else {
+                // Broadcast the drawing action to other clients
+                broadcast(obj, sender);
+            }
+        } catch (ParseException | ClassCastException e) {
+            Log.warn("Invalid JSON received", e);
+        }
+        ServerMetrics.parsed.increment();
+        ServerMetrics.parsedCpuNanos.add(ServerMetrics.cpuTime() - start);
+    }
+    /**
+     * Handles one frame received from a client that uses the binary protocol.
+     * Stroke and point frames are relayed as they are; JSON frames take the same path as lines.
+     *
+     * @param frame  the frame including its length prefix.
+     * @param sender the client that sent the frame.
+     * @param parser the sender's JSON parser.
+     * @throws IOException if the frame is malformed; the caller disconnects the sender.
+     */
+    static void handleClientFrame(byte[] frame, DrawingPeer sender, JSONParser parser) throws IOException {
+        BinaryProtocol.check(frame);
+        if (frame[4] == BinaryProtocol.OP_JSON) {
+            handleClientLine(frame, 5, frame.length - 5, sender, parser);
+            return;
+        }
+        sender.getLiveness().heard();
+        long start = ServerMetrics.cpuTime();
+        Frame event = Frame.fromBinary(frame, sender);
+        if (!admit(event.getAction(), sender)) {
+            return;
         }
+        relay(event, sender);
+        ServerMetrics.relayedRaw.increment();
+        ServerMetrics.relayedRawCpuNanos.add(ServerMetrics.cpuTime() - start);
     }
     /**
-     * Removes a client handler from the set of connected clients.
+     * Applies the sender's rate limit to a message, telling the sender when it is over.
+     *
+     * @param action the action of the message.
+     * @param sender the client that sent it.
+     * @return {@code true} if the message may be handled.
+     */
+    private static boolean admit(String action, DrawingPeer sender) {
+        RateLimiter limiter = sender.getRateLimiter();
+        RateLimiter.Kind kind = RateLimiter.kindOf(action);
+        if (limiter.allow(kind)) {
+            return true;
+        }
+        JSONObject reply = limiter.rejection(kind);
+        if (reply != null) {
+            sender.sendMessage(reply);
+        }
+        return false;
+    }
+    /**
+     * Checks whether the server relays an action without looking at its content.
+     *
+     * @param action the action of the message.
+     * @return {@code true} for drawing events that are only forwarded.
+     */
+    static boolean isPassThrough(String action) {
+        return "draw".equals(action) || "stroke".equals(action) || "shape".equals(action) || "textdata".equals(action);
+    }
+    /**
+     * Describes how far behind each connected client is.
+     *
+     * @return one line listing every client's lag, round-trip time and the frames its queue
+     * dropped and merged, by room.
+     */
+    static String lagReport() {
+        StringBuilder report = new StringBuilder("lag:");
+        for (Room room : rooms.values()) {
+            for (DrawingPeer client : room.getMembers()) {
+                report.append(' ').append(room.getName()).append('/').append(client.getUserName())
+                        .append('=').append(client.getLagMillis()).append("ms")
+                        .append("(rtt ").append(client.getLiveness().getRttMillis()).append("ms")
+                        .append(", dropped ").append(client.getDroppedFrames())
+                        .append(", merged ").append(client.getCoalescedFrames()).append(')');
+            }
+        }
+        return report.toString();
+    }
+    /**
+     * Ends one of a user's sessions on this node; the user goes offline here with the last one.
+     * Called once for every client that {@link #join joined}.
+     *
+     * @param userName the user's name.
+     */
+    static void markOffline(String userName) {
+        boolean wentOffline;
+        synchronized (onlineUsers) {
+            wentOffline = onlineUsers.containsKey(userName)
+                    && onlineUsers.computeIfPresent(userName, (name, sessions) -> sessions > 1 ? sessions - 1 : null) == null;
+        }
+        Cluster.publishPresence();
+        if (wentOffline) {
+            Presence.left(userName);
+        }
+    }
+    /**
+     * Checks whether a user has a session on this node.
+     *
+     * @param userName the user's name.
+     * @return {@code true} if the user is online here.
+     */
+    static boolean isOnline(String userName) {
+        synchronized (onlineUsers) {
+            return onlineUsers.containsKey(userName);
+        }
+    }
+    /**
+     * Removes a client handler from its room.
      *
      * @param clientHandler the client handler to remove.
      */
-    public static void removeClient(ClientHandler clientHandler) {
-        synchronized (clientHandlers) {
-            clientHandlers.remove(clientHandler);
+    public static void removeClient(DrawingPeer clientHandler) {
+        Room room = clientHandler.getRoom();
+        if (room != null) {
+            room.leave(clientHandler);
+            if (room.getMembers().isEmpty()) {
+                evictLater(room);
+            }
+        }
+    }
+    /**
+     * Queues a save request so the canvas file is written off the connection thread.
+     *
+     * @param obj       the JSON object containing canvas data.
+     * @param requester the client that asked for the save.
+     */
+    static void submitSave(JSONObject obj, DrawingPeer requester) {
+        try {
+            saveExecutor.execute(() -> saveCanvasData(obj, requester));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            JSONObject errorResponse = new JSONObject();
+            errorResponse.put("status", "error");
+            errorResponse.put("message", "Server is shutting down, save again after reconnecting.");
+            requester.sendMessage(errorResponse);
+        }
+    }
+    /**
+     * Waits for the saves already queued and stops accepting new ones.
+     *
+     * @param timeoutMillis the longest time to wait.
+     * @return {@code true} if every save finished.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    static boolean finishSaves(long timeoutMillis) throws InterruptedException {
+        saveExecutor.shutdown();
+        return saveExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    /**
+     * Stops recording drawing events in every room, so the final save holds everything relayed.
+     * Rooms opened afterwards never record.
+     */
+    static void stopRecording() {
+        for (Room room : rooms.values()) {
+            room.stopRecording();
+        }
+    }
+    /**
+     * Writes every room's canvas so the next start can restore it.
+     */
+    static void saveRooms() {
+        for (Room room : rooms.values()) {
+            CanvasStore.save(room);
+        }
+    }
+    /**
+     * Sends a message created by the server to every client of every room.
+     *
+     * @param message the message.
+     */
+    static void sendToAll(JSONObject message) {
+        Frame frame = new Frame(message, null);
+        for (Room room : rooms.values()) {
+            for (DrawingPeer client : room.getMembers()) {
+                client.send(frame);
+            }
+        }
+    }
+    /**
+     * Checks whether every client's queue has been written.
+     *
+     * @return {@code true} if no frames are waiting.
+     */
+    static boolean isDrained() {
+        for (Room room : rooms.values()) {
+            for (DrawingPeer client : room.getMembers()) {
+                if (!client.isDrained()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    /**
+     * Saves the canvas data to a JSON file.
+     *
+     * @param obj       the JSON object containing canvas data.
+     * @param requester the client that receives the confirmation.
+     */
+    private static void saveCanvasData(JSONObject obj, DrawingPeer requester) {
+        try {
+            // Extract file name and shapes data from the JSON object
+            String fileName = (String) obj.get("fileName");
+            JSONArray shapesArray = (JSONArray) obj.get("shapes");
+            String filePath = "E:\\Canva\\savedFiles\\" + fileName + ".json"; // Full path
+
+            // Create or overwrite the file
+            File file = null;
+            try {
+                file = new File(filePath);
+                if (file.createNewFile()) {
+                    Log.info("file created");
+                } else {
+                    Log.info("existed");
+                }
+            } catch (IOException ioException) {
+                Log.warn("Could not create " + filePath, ioException);
+            }
+            try (FileWriter fileWriter = new FileWriter(file)) {
+                JSONObject canvasData = new JSONObject();
+                canvasData.put("shapes", shapesArray);
+
+                // Write the JSON data to the file
+                fileWriter.write(canvasData.toJSONString());
+                fileWriter.flush();
+            }
+
+            Log.info("Canvas data saved to " + file.getAbsolutePath());
+            // Optionally send a confirmation message back to the client
+            JSONObject response = new JSONObject();
+            response.put("status", "success");
+            response.put("message", "Canvas saved as " + fileName + ".json");
+            requester.sendMessage(response);
+        } catch (IOException e) {
+            Log.warn("Error saving canvas data", e);
+
+            // Send an error message back to the client
+            JSONObject errorResponse = new JSONObject();
+            errorResponse.put("status", "error");
+            errorResponse.put("message", "Failed to save canvas data.");
+            requester.sendMessage(errorResponse);
         }
     }
 }
 /**
  * Handles client connections and communication.
  */
-class ClientHandler implements Runnable {
+class ClientHandler implements Runnable, DrawingPeer {
+    private static final byte[] USERNAME_PROMPT = "Enter your username:\n".getBytes(StandardCharsets.UTF_8);
     private Socket socket;
-    private PrintWriter out;
+    private OutputStream out;
     private String userName;
+    private volatile Room room;
+    private final Executor writerThreads;
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final RateLimiter limiter = new RateLimiter();
+    private final Liveness liveness = new Liveness(this::ping, this::disconnect, outbound);
     /**
      * Constructs a new {@code ClientHandler} for the specified socket.
      *
-     * @param socket the socket for client communication.
+     * @param socket        the socket for client communication.
+     * @param writerThreads the executor that runs the client's writer.
      */
-    public ClientHandler(Socket socket) {
+    public ClientHandler(Socket socket, Executor writerThreads) {
         this.socket = socket;
+        this.writerThreads = writerThreads;
     }
     /**
      * The main execution method for the client handler.
@@ -85,43 +534,45 @@ class ClientHandler implements Runnable {
     public void run() {
         try (
                 InputStream input = socket.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
                 OutputStream output = socket.getOutputStream();
-                PrintWriter writer = new PrintWriter(output, true)
+                BufferedOutputStream writer = new BufferedOutputStream(output);
+                FrameReader reader = new FrameReader(input)
         ) {
             this.out = writer;
             JSONParser parser = new JSONParser();
-            String jsonString;
 
             // Ask the client for their username
-            out.println("Enter your username:");
-            this.userName = reader.readLine();
-
-            // Add the user to the list of online users and send the update to all clients
-            synchronized (drawingServer.onlineUsers) {
-                drawingServer.onlineUsers.add(userName);
-            }
-
-            while ((jsonString = reader.readLine()) != null) {
-                try {
-                    JSONObject obj = (JSONObject) parser.parse(jsonString);
-                    System.out.println("Received: " + obj.toJSONString());
-
-                    // Check if the request is a save action
-                    if ("save".equals(obj.get("action"))) {
-                        saveCanvasData(obj);
-                    } else {
-                        // Broadcast the drawing action to other clients
-                        drawingServer.broadcast(obj, this);
-                    }
-                } catch (ParseException e) {
-                    System.out.println("Invalid JSON received:");
-                    e.printStackTrace();
+            out.write(USERNAME_PROMPT);
+            out.flush();
+            writerThreads.execute(this::writeQueuedFrames);
+            byte[] first = reader.readLine();
+            if (first == null) {
+                return;
+            }
+            Handshake handshake = Handshake.parse(first, 0, first.length);
+            if (!drawingServer.authorize(handshake)) {
+                return;
+            }
+            this.userName = handshake.getUserName();
+
+            // Add the user to the list of online users and start receiving the room's broadcasts
+            this.room = drawingServer.join(this, handshake);
+
+            if (handshake.isBinary()) {
+                byte[] frame;
+                while ((frame = reader.readBinaryFrame()) != null) {
+                    drawingServer.handleClientFrame(frame, this, parser);
+                }
+            } else {
+                // Lines are handled in place in the reader's buffer
+                while (reader.nextLine()) {
+                    drawingServer.handleClientLine(reader.buffer(), reader.lineOffset(), reader.lineLength(), this, parser);
                 }
             }
+        } catch (FrameTooLargeException e) {
+            Log.info("Disconnecting " + userName + ": " + e.getMessage());
         } catch (IOException e) {
-            System.out.println("Connection error:");
-            e.printStackTrace();
+            Log.warn("Connection error", e);
         } finally {
             closeConnection();
         }
@@ -133,76 +584,113 @@ class ClientHandler implements Runnable {
     private void closeConnection() {
         try {
             // Remove the client from the online users list when they disconnect
-            if (userName != null) {
-                synchronized (drawingServer.onlineUsers) {
-                    drawingServer.onlineUsers.remove(userName);
-                }
+            if (room != null) {
+                drawingServer.markOffline(userName);
             }
             //drawingServer.sendOnlineUsers();  // Send the updated list of online users
 
             drawingServer.removeClient(this);
+            liveness.stop();
+            outbound.close();
             socket.close();
-            System.out.println("Client disconnected.");
+            Log.info("Client disconnected. user=" + userName);
+        } catch (IOException e) {
+            Log.warn("Error closing connection", e);
+        }
+    }
+    /**
+     * Drains the outbound queue onto the socket, flushing whenever the queue runs empty.
+     * Runs on its own thread so a slow socket only ever blocks this client.
+     */
+    private void writeQueuedFrames() {
+        try {
+            boolean binary = false;
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                frame.writeTo(out, binary);
+                if (frame.getSwitchesTo() != null) {
+                    binary = BinaryProtocol.NAME.equals(frame.getSwitchesTo());
+                }
+                if (outbound.isEmpty()) {
+                    out.flush();
+                }
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("Write error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        disconnect();
     }
     /**
-     * Sends a JSON message to the connected client.
+     * Queues a frame for the connected client.
      *
-     * @param message the JSON message to send.
+     * @param frame the frame to send.
      */
-    public void sendMessage(JSONObject message) {
-        out.println(message.toJSONString());
+    @Override
+    public void send(Frame frame) {
+        if (!outbound.offer(frame)) {
+            Log.warn("Outbound queue full, disconnecting " + userName);
+            disconnect();
+        }
     }
     /**
-     * Saves the canvas data to a JSON file.
+     * Pings the client once it has joined a room; before that it expects the welcome.
      *
-     * @param obj the JSON object containing canvas data.
+     * @param ping the ping, shared by every client.
+     */
+    private void ping(Frame ping) {
+        if (room != null) {
+            send(ping);
+        }
+    }
+    /**
+     * Closes the socket so the reader loop ends and cleans up in {@link #closeConnection()}.
      */
-    private void saveCanvasData(JSONObject obj) {
+    private void disconnect() {
         try {
-            // Extract file name and shapes data from the JSON object
-            String fileName = (String) obj.get("fileName");
-            JSONArray shapesArray = (JSONArray) obj.get("shapes");
-            String filePath = "E:\\Canva\\savedFiles\\" + fileName + ".json"; // Full path
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing connection", e);
+        }
+    }
+    @Override
+    public String getUserName() {
+        return userName;
+    }
 
-            // Create or overwrite the file
-            File file = null;
-            try {
-                file = new File(filePath);
-                if (file.createNewFile()) {
-                    System.out.println("file created");
-                } else {
-                    System.out.println("existed");
-                }
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
-            }
-            try (FileWriter fileWriter = new FileWriter(file)) {
-                JSONObject canvasData = new JSONObject();
-                canvasData.put("shapes", shapesArray);
+    @Override
+    public Room getRoom() {
+        return room;
+    }
 
-                // Write the JSON data to the file
-                fileWriter.write(canvasData.toJSONString());
-                fileWriter.flush();
-            }
+    @Override
+    public long getLagMillis() {
+        return outbound.getLagMillis();
+    }
 
-            System.out.println("Canvas data saved to " + file.getAbsolutePath());
-            // Optionally send a confirmation message back to the client
-            JSONObject response = new JSONObject();
-            response.put("status", "success");
-            response.put("message", "Canvas saved as " + fileName + ".json");
-            sendMessage(response);
-        } catch (IOException e) {
-            System.out.println("Error saving canvas data:");
-            e.printStackTrace();
+    @Override
+    public long getDroppedFrames() {
+        return outbound.getDroppedFrames();
+    }
 
-            // Send an error message back to the client
-            JSONObject errorResponse = new JSONObject();
-            errorResponse.put("status", "error");
-            errorResponse.put("message", "Failed to save canvas data.");
-            sendMessage(errorResponse);
-        }
+    @Override
+    public long getCoalescedFrames() {
+        return outbound.getCoalescedFrames();
+    }
+
+    @Override
+    public RateLimiter getRateLimiter() {
+        return limiter;
+    }
+
+    @Override
+    public Liveness getLiveness() {
+        return liveness;
+    }
+
+    @Override
+    public boolean isDrained() {
+        return outbound.isEmpty();
     }
 }
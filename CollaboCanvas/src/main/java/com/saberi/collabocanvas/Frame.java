@@ -0,0 +1,303 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message on its way to one or more drawing clients.
+ * The message is encoded at most once per wire protocol (a JSON line, a binary frame), and
+ * that same immutable byte array is shared by every recipient's writer. Whichever encoding
+ * the sender used is kept as is; the other one is produced lazily the first time a recipient
+ * on the other protocol needs it.
+ * Also remembers the action and the sender so outbound queues can decide
+ * what may be dropped or merged when a client falls behind.
+ */
+final class Frame {
+    // Parsers are not thread safe, and each one allocates a 16K char buffer: too much per message
+    private static final ThreadLocal<JSONParser> parsers = ThreadLocal.withInitial(JSONParser::new);
+
+    private volatile JSONObject message; // parsed lazily for raw frames
+    private final String action;
+    private final DrawingPeer sender;
+    // Encoded forms; never modified once set
+    private volatile byte[] line;
+    private volatile byte[] binary;
+    private String switchesTo; // protocol the recipient uses after this frame, for welcome frames
+    private long seq; // position in the canvas event log, 0 if not logged
+
+    /**
+     * Constructs a new frame.
+     *
+     * @param message the JSON message to deliver.
+     * @param sender  the client the message came from, or {@code null} for server messages.
+     */
+    Frame(JSONObject message, DrawingPeer sender) {
+        this.message = message;
+        this.action = (String) message.get("action");
+        this.sender = sender;
+        this.line = encodeLine(message);
+    }
+
+    /**
+     * Constructs a frame that relays a line exactly as the client sent it.
+     *
+     * @param line   the UTF-8 line including its terminator; ownership passes to the frame.
+     * @param action the action found by {@link ActionScanner}.
+     * @param sender the client the line came from.
+     */
+    Frame(byte[] line, String action, DrawingPeer sender) {
+        this.line = line;
+        this.action = action;
+        this.sender = sender;
+    }
+
+    private Frame(String action, DrawingPeer sender) {
+        this.action = action;
+        this.sender = sender;
+    }
+
+    /**
+     * Creates a frame that relays a binary frame exactly as the client sent it.
+     *
+     * @param frame  the binary frame including its length prefix; ownership passes to the frame.
+     * @param sender the client the frame came from.
+     * @return the new frame.
+     */
+    static Frame fromBinary(byte[] frame, DrawingPeer sender) {
+        Frame result = new Frame(BinaryProtocol.actionOf(frame), sender);
+        result.binary = frame;
+        return result;
+    }
+
+    /**
+     * Creates the reply to a {@code hello}. It is always written as a JSON line, and the
+     * recipient's writer switches to the chosen protocol right after it. It names this node,
+     * as sequence numbers are only meaningful on the node that assigned them.
+     *
+     * @param protocol the protocol chosen for the connection.
+     * @return the welcome frame.
+     */
+    static Frame welcome(String protocol) {
+        JSONObject welcome = new JSONObject();
+        welcome.put("action", "welcome");
+        welcome.put("protocol", protocol);
+        welcome.put("node", ServerConfig.NODE_ID);
+        Frame frame = new Frame(welcome, null);
+        frame.switchesTo = protocol;
+        return frame;
+    }
+
+    /**
+     * Creates a copy of this frame stamped with its sequence number in the canvas event log.
+     * Encoded forms are patched rather than re-encoded: a JSON line gets a {@code "seq"} field
+     * spliced in before its closing brace, a binary frame gets its sequence varint replaced.
+     *
+     * @param seq the sequence number.
+     * @return the stamped frame.
+     */
+    Frame withSeq(long seq) {
+        Frame result = new Frame(action, sender);
+        result.seq = seq;
+        JSONObject decoded = message;
+        if (decoded != null) {
+            JSONObject copy = new JSONObject();
+            copy.putAll(decoded);
+            copy.put("seq", seq);
+            result.message = copy;
+        }
+        byte[] encodedLine = line;
+        if (encodedLine != null) {
+            result.line = spliceSeq(encodedLine, seq);
+        }
+        byte[] encodedBinary = binary;
+        if (encodedBinary != null) {
+            result.binary = encodedBinary[4] == BinaryProtocol.OP_JSON
+                    ? null // re-encoded from the stamped line on demand
+                    : BinaryProtocol.withSeq(encodedBinary, seq);
+        }
+        return result;
+    }
+
+    private static byte[] spliceSeq(byte[] line, long seq) {
+        int brace = line.length - 1;
+        while (brace >= 0 && line[brace] != '}') {
+            brace--;
+        }
+        if (brace < 0) {
+            return line; // not an object; left for the client to reject
+        }
+        byte[] field = (",\"seq\":" + seq).getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[line.length + field.length];
+        System.arraycopy(line, 0, result, 0, brace);
+        System.arraycopy(field, 0, result, brace, field.length);
+        System.arraycopy(line, brace, result, brace + field.length, line.length - brace);
+        return result;
+    }
+
+    /**
+     * Encodes a JSON message as a newline terminated UTF-8 line.
+     *
+     * @param message the JSON message.
+     * @return the encoded line.
+     */
+    static byte[] encodeLine(JSONObject message) {
+        return (message.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the JSON message, parsing or decoding it on first use for relayed frames.
+     *
+     * @return the JSON message, or {@code null} if the relayed bytes are not a valid message.
+     */
+    JSONObject getMessage() {
+        JSONObject parsed = message;
+        if (parsed == null) {
+            try {
+                parsed = line != null
+                        ? (JSONObject) parsers.get().parse(new String(line, StandardCharsets.UTF_8))
+                        : BinaryProtocol.decode(binary);
+                message = parsed;
+            } catch (ParseException | RuntimeException e) {
+                return null;
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Checks that the frame holds a complete message. A relayed line is checked with
+     * {@link ActionScanner#isObject} rather than parsed, so raw relaying stays cheap.
+     *
+     * @return {@code true} if every recipient can decode the frame.
+     */
+    boolean isWellFormed() {
+        if (message != null) {
+            return true;
+        }
+        byte[] encodedLine = line;
+        if (encodedLine != null) {
+            return ActionScanner.isObject(encodedLine, 0, encodedLine.length - 1);
+        }
+        return getMessage() != null;
+    }
+
+    /**
+     * Gets the encoding for one protocol, producing it on first use.
+     *
+     * @param binaryProtocol {@code true} for the binary protocol, {@code false} for JSON lines.
+     * @return the encoded bytes; shared, must not be modified.
+     */
+    private byte[] encoded(boolean binaryProtocol) {
+        if (binaryProtocol && switchesTo == null) {
+            byte[] encoded = binary;
+            if (encoded == null) {
+                // Only strokes and points have a binary form; don't parse anything else
+                boolean compact = "stroke".equals(action) || "draw".equals(action);
+                encoded = BinaryProtocol.encode(compact || line == null ? getMessage() : null, line);
+                binary = encoded;
+            }
+            return encoded;
+        }
+        byte[] encoded = line;
+        if (encoded == null) {
+            JSONObject decoded = getMessage();
+            encoded = decoded != null ? encodeLine(decoded) : new byte[0];
+            line = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Gets the message as a JSON line.
+     *
+     * @return the newline terminated line, empty if the frame holds no valid message; shared,
+     * must not be modified.
+     */
+    byte[] toJsonLine() {
+        return encoded(false);
+    }
+
+    /**
+     * Gets the encoded frame for one protocol.
+     *
+     * @param binaryProtocol whether the recipient uses the binary protocol.
+     * @return the encoded bytes; shared, must not be modified.
+     */
+    byte[] toBytes(boolean binaryProtocol) {
+        return encoded(binaryProtocol);
+    }
+
+    /**
+     * Creates a read-only buffer over the encoded frame. Each call returns an independent
+     * view, so every recipient keeps its own write position without copying the bytes.
+     *
+     * @param binaryProtocol whether the recipient uses the binary protocol.
+     * @return a read-only view of the encoded frame.
+     */
+    ByteBuffer toByteBuffer(boolean binaryProtocol) {
+        return ByteBuffer.wrap(encoded(binaryProtocol)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the encoded frame to a stream.
+     *
+     * @param output         the stream to write to.
+     * @param binaryProtocol whether the recipient uses the binary protocol.
+     * @throws IOException if writing fails.
+     */
+    void writeTo(OutputStream output, boolean binaryProtocol) throws IOException {
+        output.write(encoded(binaryProtocol));
+    }
+
+    /**
+     * Gets the protocol the recipient switches to after this frame.
+     *
+     * @return the protocol name, or {@code null} if this frame does not switch protocols.
+     */
+    String getSwitchesTo() {
+        return switchesTo;
+    }
+
+    /**
+     * Gets the frame's position in the canvas event log.
+     *
+     * @return the sequence number, or {@code 0} if the frame was not logged.
+     */
+    long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Gets the {@code action} field of the message.
+     *
+     * @return the action, or {@code null} if the message has none.
+     */
+    String getAction() {
+        return action;
+    }
+
+    /**
+     * Gets the client the message came from.
+     *
+     * @return the sender, or {@code null} for messages created by the server.
+     */
+    DrawingPeer getSender() {
+        return sender;
+    }
+
+    /**
+     * Checks whether the frame is a single pen point, which may be dropped under backpressure
+     * without losing more than a little detail of a stroke.
+     *
+     * @return {@code true} for {@code draw} messages.
+     */
+    boolean isDrawPoint() {
+        return "draw".equals(action);
+    }
+}
@@ -0,0 +1,190 @@
+package com.saberi.collabocanvas;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads newline delimited lines or length-prefixed binary frames from a stream.
+ * Unlike {@link java.io.BufferedReader} it works on bytes and never reads ahead into
+ * bytes it cannot hand back, so a connection can switch from lines to
+ * {@link BinaryProtocol} frames in the middle of the stream.
+ * <p>
+ * Lines can be read without copying with {@link #nextLine()}, which leaves the line in the
+ * reader's buffer. The buffer comes from {@link BufferPool} and grows only up to the
+ * reader's limit; anything longer fails with {@link FrameTooLargeException}. After an
+ * unusually long line the reader goes back to a standard-size buffer, and {@link #close()}
+ * returns it to the pool.
+ * </p>
+ */
+class FrameReader implements Closeable {
+    private final InputStream in;
+    private final int maxFrameBytes;
+    private byte[] buf = BufferPool.acquire();
+    private int pos;
+    private int limit;
+    private int lineOffset;
+    private int lineLength;
+
+    /**
+     * Constructs a new frame reader limited to {@link ServerConfig#DRAWING_MAX_LINE_BYTES}.
+     *
+     * @param in the stream to read from; should not be buffered itself.
+     */
+    FrameReader(InputStream in) {
+        this(in, ServerConfig.DRAWING_MAX_LINE_BYTES);
+    }
+
+    /**
+     * Constructs a new frame reader.
+     *
+     * @param in            the stream to read from; should not be buffered itself.
+     * @param maxFrameBytes the longest line or frame accepted, in bytes.
+     */
+    FrameReader(InputStream in, int maxFrameBytes) {
+        this.in = in;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Reads the next line into the buffer. The line stays valid until the next read.
+     *
+     * @return {@code true} if a line was read, {@code false} at the end of the stream.
+     * @throws IOException if reading fails or the line is too long.
+     */
+    boolean nextLine() throws IOException {
+        int scanned = 0; // bytes after pos already known to hold no newline
+        while (true) {
+            for (int i = pos + scanned; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    int end = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                    lineOffset = pos;
+                    lineLength = end - pos;
+                    pos = i + 1;
+                    return true;
+                }
+            }
+            scanned = limit - pos;
+            if (scanned > maxFrameBytes) {
+                throw new FrameTooLargeException(maxFrameBytes);
+            }
+            if (fill() < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Gets the buffer holding the line read by {@link #nextLine()}.
+     *
+     * @return the buffer; must not be modified.
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Gets where the line read by {@link #nextLine()} starts in the buffer.
+     *
+     * @return the offset.
+     */
+    int lineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * Gets the length of the line read by {@link #nextLine()}.
+     *
+     * @return the length, without its terminator.
+     */
+    int lineLength() {
+        return lineLength;
+    }
+
+    /**
+     * Reads the next line into a new array.
+     *
+     * @return the line without its terminator, or {@code null} at the end of the stream.
+     * @throws IOException if reading fails or the line is too long.
+     */
+    byte[] readLine() throws IOException {
+        return nextLine() ? Arrays.copyOfRange(buf, lineOffset, lineOffset + lineLength) : null;
+    }
+
+    /**
+     * Reads the next binary frame.
+     *
+     * @return the frame including its length prefix, or {@code null} at the end of the stream.
+     * @throws IOException if reading fails or the frame is malformed or too long.
+     */
+    byte[] readBinaryFrame() throws IOException {
+        if (!require(4)) {
+            return null;
+        }
+        int length = BinaryProtocol.frameLength(buf, pos);
+        if (length > maxFrameBytes) {
+            throw new FrameTooLargeException(maxFrameBytes);
+        }
+        if (length <= 0) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (!require(4 + length)) {
+            return null;
+        }
+        byte[] frame = Arrays.copyOfRange(buf, pos, pos + 4 + length);
+        pos += 4 + length;
+        return frame;
+    }
+
+    private boolean require(int count) throws IOException {
+        while (limit - pos < count) {
+            if (fill() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads more bytes, compacting or growing the buffer first if it is full. A grown buffer
+     * is swapped back for a standard one as soon as the unread bytes fit into it.
+     *
+     * @return the number of bytes read, or {@code -1} at the end of the stream.
+     */
+    private int fill() throws IOException {
+        int unread = limit - pos;
+        if (buf.length > BufferPool.BUFFER_SIZE && unread < BufferPool.BUFFER_SIZE) {
+            byte[] standard = BufferPool.acquire();
+            System.arraycopy(buf, pos, standard, 0, unread);
+            buf = standard;
+            pos = 0;
+            limit = unread;
+        } else if (limit == buf.length) {
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, unread);
+                limit = unread;
+                pos = 0;
+            } else {
+                buf = Arrays.copyOf(buf, (int) Math.min((long) buf.length * 2, maxFrameBytes + 5L));
+            }
+        }
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read > 0) {
+            limit += read;
+        }
+        return read;
+    }
+
+    /**
+     * Returns the buffer to the pool. Does not close the stream.
+     */
+    @Override
+    public void close() {
+        byte[] released = buf;
+        buf = new byte[0];
+        pos = 0;
+        limit = 0;
+        BufferPool.release(released);
+    }
+}
@@ -0,0 +1,20 @@
+package com.saberi.collabocanvas;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a client sends a line or frame over the configured size limit.
+ * The connection is closed without reading the rest of it.
+ */
+class FrameTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a new exception.
+     *
+     * @param limit the limit that was exceeded, in bytes.
+     */
+    FrameTooLargeException(int limit) {
+        super("Frame exceeds " + limit + " bytes");
+    }
+}
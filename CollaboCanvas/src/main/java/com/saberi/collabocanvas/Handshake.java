@@ -0,0 +1,171 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * The first line a drawing client sends after the username prompt.
+ * Older clients send a plain username. Newer clients send a {@code hello} object instead,
+ * which carries the username and the options for the connection, e.g.
+ * <pre>{"action":"hello","username":"bob","room":"design","protocols":["binary-v1","json"],"lastSeq":42,"lastSeqNode":"a1b2c3d4"}</pre>
+ * and are answered with a {@code welcome} naming the protocol the server picked and this node.
+ * {@code room} picks the board to draw on; plain usernames and invalid names get {@link Room#DEFAULT}.
+ * {@code lastSeq}, sent when reconnecting, is the last canvas event the client has seen, and
+ * {@code lastSeqNode} the node it was connected to. Every node numbers the events it relays
+ * itself, so a {@code lastSeq} from another node is ignored and the client gets a snapshot.
+ * {@code token}, the session token from the client's LOGIN, replaces the username with the one
+ * it was issued to; see {@link #isAuthorized()}.
+ */
+final class Handshake {
+    /** Name of the newline delimited JSON protocol. */
+    static final String JSON = "json";
+
+    private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final String userName;
+    private final boolean hello;
+    private final String protocol;
+    private final long lastSeq;
+    private final String room;
+    private final Boolean tokenValid;
+
+    private Handshake(String userName, boolean hello, String protocol, long lastSeq, String room, Boolean tokenValid) {
+        this.userName = userName;
+        this.tokenValid = tokenValid;
+        this.room = room;
+        this.hello = hello;
+        this.protocol = protocol;
+        this.lastSeq = lastSeq;
+    }
+
+    /**
+     * Parses the first line of a connection.
+     *
+     * @param buf the buffer holding the line.
+     * @param off the offset of the line.
+     * @param len the length of the line, without its terminator.
+     * @return the handshake.
+     */
+    static Handshake parse(byte[] buf, int off, int len) {
+        String line = new String(buf, off, len, StandardCharsets.UTF_8);
+        if (line.startsWith("{")) {
+            try {
+                JSONObject obj = (JSONObject) new JSONParser().parse(line);
+                if ("hello".equals(obj.get("action"))) {
+                    String userName = obj.get("username") != null ? (String) obj.get("username") : "anonymous";
+                    long lastSeq = obj.get("lastSeq") != null ? ((Number) obj.get("lastSeq")).longValue() : -1;
+                    if (!isFromThisNode(obj.get("lastSeqNode"))) {
+                        lastSeq = -1;
+                    }
+                    String room = obj.get("room") instanceof String && ROOM_NAME.matcher((String) obj.get("room")).matches()
+                            ? (String) obj.get("room") : Room.DEFAULT;
+                    Boolean tokenValid = null;
+                    if (obj.get("token") instanceof String) {
+                        String verified = SessionTokens.verify((String) obj.get("token"));
+                        tokenValid = verified != null;
+                        if (verified != null) {
+                            userName = verified;
+                        }
+                    }
+                    return new Handshake(userName, true, chooseProtocol((JSONArray) obj.get("protocols")), lastSeq, room, tokenValid);
+                }
+            } catch (ParseException | ClassCastException e) {
+                // not a hello, treat the line as a plain username
+            }
+        }
+        return new Handshake(line, false, JSON, -1, Room.DEFAULT, null);
+    }
+
+    /**
+     * Checks whether a client's {@code lastSeq} was assigned by this node. Clients from before
+     * the node was sent have none, which is only safe to trust without a cluster.
+     *
+     * @param lastSeqNode the node the client named, or {@code null}.
+     * @return {@code true} if the client's sequence number can be resumed here.
+     */
+    private static boolean isFromThisNode(Object lastSeqNode) {
+        return lastSeqNode != null ? ServerConfig.NODE_ID.equals(lastSeqNode) : "none".equals(ServerConfig.CLUSTER_BUS);
+    }
+
+    /**
+     * Picks the protocol for the connection from the ones the client offers.
+     *
+     * @param offered the protocols the client supports, or {@code null}.
+     * @return {@link BinaryProtocol#NAME} if both sides support it, otherwise {@link #JSON}.
+     */
+    private static String chooseProtocol(JSONArray offered) {
+        if (ServerConfig.BINARY_PROTOCOL && offered != null && offered.contains(BinaryProtocol.NAME)) {
+            return BinaryProtocol.NAME;
+        }
+        return JSON;
+    }
+
+    /**
+     * Gets the username of the client.
+     *
+     * @return the username.
+     */
+    String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Checks whether the client may draw: a token it sent must be valid, and without one it
+     * is only trusted while {@link ServerConfig#SESSION_REQUIRED} is off.
+     *
+     * @return {@code true} if the connection may proceed.
+     */
+    boolean isAuthorized() {
+        return tokenValid != null ? tokenValid : !ServerConfig.SESSION_REQUIRED;
+    }
+
+    /**
+     * Checks whether the client sent a {@code hello} and expects a {@code welcome}.
+     *
+     * @return {@code true} for a hello, {@code false} for a plain username.
+     */
+    boolean isHello() {
+        return hello;
+    }
+
+    /**
+     * Gets the protocol chosen for the connection.
+     *
+     * @return {@link #JSON} or {@link BinaryProtocol#NAME}.
+     */
+    String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Gets the room the client wants to draw in.
+     *
+     * @return the room name.
+     */
+    String getRoom() {
+        return room;
+    }
+
+    /**
+     * Gets the last canvas event a reconnecting client has seen.
+     *
+     * @return the sequence number, or {@code -1} for a fresh connection.
+     */
+    long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Checks whether the connection uses the binary protocol after the handshake.
+     *
+     * @return {@code true} for the binary protocol.
+     */
+    boolean isBinary() {
+        return BinaryProtocol.NAME.equals(protocol);
+    }
+}
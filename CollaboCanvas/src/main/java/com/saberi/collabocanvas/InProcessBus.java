@@ -0,0 +1,43 @@
+package com.saberi.collabocanvas;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * A {@link ClusterBus} between buses in the same JVM, standing in for a real broker when
+ * testing. Every bus delivers on its own thread, in publish order, like a network bus would.
+ */
+final class InProcessBus implements ClusterBus {
+    private static final List<InProcessBus> BUSES = new CopyOnWriteArrayList<>();
+
+    private volatile Consumer<Message> listener;
+    private final ExecutorService delivery = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-bus");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public void start(Consumer<Message> listener) {
+        this.listener = listener;
+        BUSES.add(this);
+    }
+
+    @Override
+    public void publish(Message message) {
+        for (InProcessBus bus : BUSES) {
+            if (bus != this) {
+                bus.delivery.execute(() -> bus.listener.accept(message));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        BUSES.remove(this);
+        delivery.shutdown();
+    }
+}
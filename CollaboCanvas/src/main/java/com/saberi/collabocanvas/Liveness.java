@@ -0,0 +1,170 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Tracks whether a drawing or chat client is still there, and how far away it is.
+ * Every {@link ServerConfig#HEARTBEAT_SECONDS} the server sends each client
+ * {@code {"action":"ping","sentAt":<millis>}}, which the client echoes back as a {@code pong}.
+ * Anything received counts as a sign of life; a client not heard from for
+ * {@link ServerConfig#IDLE_TIMEOUT_SECONDS} is disconnected, so half-open connections stop
+ * receiving broadcasts and release their threads. The heartbeat thread only queues the ping,
+ * one frame shared by every client, on each connection's writer; it never writes to a socket,
+ * so a client that stopped reading cannot hold it up.
+ * <p>
+ * Clients from before the heartbeat neither answer pings nor expect them: they would be
+ * disconnected whenever the user is idle, and the old chat window shows a ping as a line.
+ * So a connection is only pinged, and only disconnected when idle, once it has shown that it
+ * takes part, by sending a {@code hello} (see {@link #expectPongs()}) or answering a pong.
+ * </p>
+ * <p>
+ * The round-trip time of the pongs is averaged per client and shown in the lag report.
+ * A drawing client whose round trip exceeds {@link ServerConfig#SLOW_RTT_MILLIS} counts as
+ * lagging after fewer queued frames, so it gets merged pen input sooner.
+ * </p>
+ */
+final class Liveness {
+    private static final Set<Liveness> tracked = ConcurrentHashMap.newKeySet();
+
+    static {
+        if (ServerConfig.HEARTBEAT_SECONDS > 0) {
+            ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heartbeat.scheduleWithFixedDelay(Liveness::beat,
+                    ServerConfig.HEARTBEAT_SECONDS, ServerConfig.HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private final Consumer<Frame> pinger;
+    private final Runnable closer;
+    private final OutboundQueue outbound;
+    private volatile long lastHeard = System.currentTimeMillis();
+    private volatile long rttMillis = -1;
+    private volatile boolean answersPings;
+
+    /**
+     * Starts tracking a connection.
+     *
+     * @param pinger   queues a ping for the client, if it is ready for one; must not block.
+     * @param closer   disconnects the client; called from the heartbeat thread.
+     * @param outbound the drawing client's queue, or {@code null} for chat connections.
+     */
+    Liveness(Consumer<Frame> pinger, Runnable closer, OutboundQueue outbound) {
+        this.pinger = pinger;
+        this.closer = closer;
+        this.outbound = outbound;
+        tracked.add(this);
+    }
+
+    /**
+     * Marks the client as one that answers pings, e.g. because it sent a {@code hello}, so
+     * the heartbeat starts pinging it and disconnects it when it falls silent.
+     */
+    void expectPongs() {
+        answersPings = true;
+    }
+
+    /**
+     * Records that something arrived from the client.
+     */
+    void heard() {
+        lastHeard = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a pong and updates the round-trip time.
+     *
+     * @param pong the pong message, echoing the ping's {@code sentAt}.
+     */
+    void pong(JSONObject pong) {
+        heard();
+        answersPings = true;
+        if (!(pong.get("sentAt") instanceof Number)) {
+            return;
+        }
+        long sample = Math.max(0, System.currentTimeMillis() - ((Number) pong.get("sentAt")).longValue());
+        long previous = rttMillis;
+        long rtt = previous < 0 ? sample : (previous * 7 + sample) / 8;
+        rttMillis = rtt;
+        if (outbound != null) {
+            outbound.setLagThreshold(rtt >= ServerConfig.SLOW_RTT_MILLIS
+                    ? Math.max(1, ServerConfig.LAG_THRESHOLD / 4) : ServerConfig.LAG_THRESHOLD);
+        }
+    }
+
+    /**
+     * Gets the client's average round-trip time.
+     *
+     * @return the round-trip time in milliseconds, or {@code -1} before the first pong.
+     */
+    long getRttMillis() {
+        return rttMillis;
+    }
+
+    /**
+     * Stops tracking the connection once it is closed.
+     */
+    void stop() {
+        tracked.remove(this);
+    }
+
+    /**
+     * Checks whether a message is a pong.
+     *
+     * @param message the message.
+     * @return {@code true} for {@code pong}.
+     */
+    static boolean isPong(JSONObject message) {
+        return "pong".equals(message.get("action"));
+    }
+
+    /**
+     * Builds the reply a client sends to a ping.
+     *
+     * @param ping the ping received.
+     * @return the pong.
+     */
+    static JSONObject pongFor(JSONObject ping) {
+        JSONObject pong = new JSONObject();
+        pong.put("action", "pong");
+        pong.put("sentAt", ping.get("sentAt"));
+        return pong;
+    }
+
+    /**
+     * Disconnects idle clients and pings the rest. Clients that never answer pings are left alone.
+     */
+    private static void beat() {
+        long now = System.currentTimeMillis();
+        JSONObject message = new JSONObject();
+        message.put("action", "ping");
+        message.put("sentAt", now);
+        Frame ping = new Frame(message, null); // encoded once for everyone
+        for (Liveness liveness : tracked) {
+            if (!liveness.answersPings) {
+                continue;
+            }
+            try {
+                if (now - liveness.lastHeard > ServerConfig.IDLE_TIMEOUT_SECONDS * 1000L) {
+                    Log.info("Closing idle connection, silent for " + (now - liveness.lastHeard) + "ms");
+                    liveness.stop();
+                    liveness.closer.run();
+                } else {
+                    liveness.pinger.accept(ping);
+                }
+            } catch (RuntimeException e) {
+                Log.warn("Heartbeat failed for a connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.saberi.collabocanvas;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Leveled, asynchronous logging for the servers' hot paths.
+ * Callers only put an entry into a bounded ring buffer; a background appender thread formats
+ * and writes it, so a slow console never stalls a connection. When the buffer is full entries
+ * are dropped and counted instead of blocking.
+ * <p>
+ * Configured with system properties: {@code collabocanvas.log.level} (TRACE, DEBUG, INFO,
+ * WARN or ERROR; INFO by default), {@code collabocanvas.log.bufferSize} and
+ * {@code collabocanvas.log.sampleEvery}. Per-message events use {@link #sample}, which is
+ * off at the default level and, when enabled, keeps only one event in {@code sampleEvery};
+ * their message is built only for the events kept.
+ * </p>
+ * Lines look like {@code 2024-05-01T10:15:30.123Z INFO [drawing-3] Client disconnected. user=alice}.
+ */
+final class Log {
+    /** Severity of an entry, lowest first. */
+    enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR
+    }
+
+    static final Level LEVEL = Level.valueOf(System.getProperty("collabocanvas.log.level", "INFO"));
+    private static final int BUFFER_SIZE = Integer.getInteger("collabocanvas.log.bufferSize", 8192);
+    private static final int SAMPLE_EVERY = Math.max(1, Integer.getInteger("collabocanvas.log.sampleEvery", 100));
+    private static final int BATCH = 256;
+
+    private static final BlockingQueue<Entry> ring = new ArrayBlockingQueue<>(BUFFER_SIZE);
+    private static final AtomicLong sampled = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread appender = new Thread(Log::append, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Checks whether entries of a level are written.
+     *
+     * @param level the level.
+     * @return {@code true} if the level is enabled.
+     */
+    static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    /**
+     * Logs a message at DEBUG level.
+     *
+     * @param message the message.
+     */
+    static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    /**
+     * Logs a message at INFO level.
+     *
+     * @param message the message.
+     */
+    static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    /**
+     * Logs a message at WARN level.
+     *
+     * @param message the message.
+     */
+    static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    /**
+     * Logs a message and an exception at WARN level.
+     *
+     * @param message the message.
+     * @param error   the exception.
+     */
+    static void warn(String message, Throwable error) {
+        log(Level.WARN, message, error);
+    }
+
+    /**
+     * Logs a message and an exception at ERROR level.
+     *
+     * @param message the message.
+     * @param error   the exception, or {@code null}.
+     */
+    static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    /**
+     * Logs one of many similar events, such as a received pen point. Nothing is built unless
+     * the level is enabled and the event is among the sampled ones.
+     *
+     * @param level   the level.
+     * @param message builds the message.
+     */
+    static void sample(Level level, Supplier<String> message) {
+        if (isEnabled(level) && sampled.getAndIncrement() % SAMPLE_EVERY == 0) {
+            log(level, message.get(), null);
+        }
+    }
+
+    /**
+     * Queues an entry for the appender. Never blocks.
+     *
+     * @param level   the level.
+     * @param message the message.
+     * @param error   an exception to print with it, or {@code null}.
+     */
+    static void log(Level level, String message, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (!ring.offer(new Entry(level, message, error))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Gets how many entries were dropped because the buffer was full.
+     *
+     * @return the count.
+     */
+    static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes queued entries in batches until the JVM exits.
+     */
+    private static void append() {
+        List<Entry> batch = new ArrayList<>(BATCH);
+        long reportedDropped = 0;
+        try {
+            while (true) {
+                batch.add(ring.take());
+                ring.drainTo(batch, BATCH - 1);
+                for (Entry entry : batch) {
+                    PrintStream out = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+                    out.println(entry.format());
+                }
+                long droppedNow = dropped.sum();
+                if (droppedNow != reportedDropped) {
+                    System.err.println(Instant.now() + " WARN [log-appender] Log buffer full, dropped="
+                            + (droppedNow - reportedDropped));
+                    reportedDropped = droppedNow;
+                }
+                System.out.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits briefly for queued entries to be written, e.g. before the JVM exits.
+     *
+     * @param timeoutMillis the longest time to wait.
+     */
+    static void flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!ring.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class Entry {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final String message;
+        final Throwable error;
+
+        Entry(Level level, String message, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+
+        String format() {
+            StringBuilder line = new StringBuilder(64 + message.length())
+                    .append(Instant.ofEpochMilli(time)).append(' ').append(level)
+                    .append(" [").append(thread).append("] ").append(message);
+            if (error != null) {
+                StringWriter trace = new StringWriter();
+                error.printStackTrace(new PrintWriter(trace));
+                line.append(System.lineSeparator()).append(trace.toString().trim());
+            }
+            return line.toString();
+        }
+    }
+}
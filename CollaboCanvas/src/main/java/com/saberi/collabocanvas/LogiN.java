@@ -13,12 +13,22 @@ import javafx.stage.Stage;
 import org.json.simple.JSONObject;
 
 import java.io.*;
-import java.net.Socket;
 
 public class logiN extends Application {
 
     private static final String SERVER_ADDRESS = "localhost";
-    private static final int SERVER_PORT = 8888;
+    private static final int SERVER_PORT = ServerConfig.AUTH_PORT;
+
+    /**
+     * Connection used for login, drawing and chat when {@code -Dcollabocanvas.client.mux=true}
+     * or {@code --mux} is set; opened on the first request.
+     */
+    private MuxClient mux;
+
+    /**
+     * Connection to the auth server for the separate-socket setup; opened on the first request.
+     */
+    private AuthClient auth;
 
     /**
      * Creates the sign-up page layout.
@@ -88,6 +98,15 @@ public class logiN extends Application {
                     } else if (response.equals("3")) {
                         errorLabel.setText("Password cannot be empty");
                         errorLabel.setVisible(true);
+                    } else if (response.equals("4")) {
+                        errorLabel.setText("Username is already taken");
+                        errorLabel.setVisible(true);
+                    } else if (response.equals(AuthWorkers.BUSY)) {
+                        errorLabel.setText("Server is busy, please try again");
+                        errorLabel.setVisible(true);
+                    } else {
+                        errorLabel.setText("Registration failed, please try again");
+                        errorLabel.setVisible(true);
                     }
                 }
             } catch (Exception ex) {
@@ -157,8 +176,11 @@ public class logiN extends Application {
 
             try {
                 String response = communicateWithServer("LOGIN", username, "", password);
+                // "0 <session token>" on success
+                String[] reply = response.split(" ", 2);
 
-                if ("0".equals(response)) {
+                if ("0".equals(reply[0])) {
+                    String token = reply.length > 1 ? reply[1] : null;
 
                     try {
                         FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/saberi/collabocanvas/Canva.fxml"));
@@ -170,11 +192,14 @@ public class logiN extends Application {
                         // Connect to the server when the application starts
                         String serverHost = "localhost";  // Use the server's address
                         int serverPort = 7777;  // Use the server's port
-                        controller.connectToServer(serverHost, serverPort);
-                        controller.connectToServerMesseging(serverHost, 1111);
-
-                        // Start listening for server messages
-                        controller.startListening();
+                        if (mux != null) {
+                            // Drawing and chat share the connection used to log in
+                            controller.connectOverMux(SERVER_ADDRESS, ServerConfig.MUX_PORT, mux, username, token);
+                        } else {
+                            // Both connections start their own listener threads
+                            controller.connectToServer(serverHost, serverPort, username, token);
+                            controller.connectToServerMesseging(serverHost, 1111, username, token);
+                        }
 
                         // Set the scene and show the stage
                         Scene scene = new Scene(root, 800, 600);
@@ -185,6 +210,9 @@ public class logiN extends Application {
                     } catch (Exception ex) {
                         showAlert(Alert.AlertType.ERROR, "Error", "Failed to load application: " + ex.getMessage());
                     }
+                } else if (AuthWorkers.BUSY.equals(reply[0])) {
+                    errorLabel.setText("Server is busy, please try again");
+                    errorLabel.setVisible(true);
                 } else {
                     errorLabel.setText("Username/Password is not Valid");
                     errorLabel.setVisible(true);
@@ -321,14 +349,23 @@ public class logiN extends Application {
             obj.put("Username", username);
             obj.put("Password", password);
         }
+        if (Boolean.getBoolean("collabocanvas.client.mux")) {
+            try {
+                if (mux == null || mux.isClosed()) {
+                    mux = new MuxClient(SERVER_ADDRESS, ServerConfig.MUX_PORT);
+                }
+                return mux.request(obj);
+            } catch (IOException io) {
+                io.printStackTrace();
+                return "Error";
+            }
+        }
         try {
-            Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            DataInputStream in = new DataInputStream(socket.getInputStream());
-
-            out.println(obj.toJSONString());
-            System.out.println("sened " + obj.toJSONString());
-            return in.readUTF();
+            // One connection for all requests; the server closes it once idle
+            if (auth == null || auth.isClosed()) {
+                auth = new AuthClient(SERVER_ADDRESS, SERVER_PORT);
+            }
+            return auth.request(obj);
         } catch (IOException io) {
             io.printStackTrace();
             return "Error";
@@ -336,21 +373,36 @@ public class logiN extends Application {
     }
 
     public static void main(String[] args) {
+        // Startup switches, e.g. --threads=virtual, map onto the server system properties
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                System.setProperty("collabocanvas.threads", arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--drawing-engine=")) {
+                System.setProperty("collabocanvas.drawing.engine", arg.substring("--drawing-engine=".length()));
+            } else if (arg.startsWith("--room=")) {
+                System.setProperty("collabocanvas.client.room", arg.substring("--room=".length()));
+            } else if (arg.equals("--mux")) {
+                System.setProperty("collabocanvas.client.mux", "true");
+            }
+        }
         Thread messagingThread = new Thread(() -> MessagingServer.startchatServer());
         Thread drawingThread = new Thread(() -> drawingServer.startDrawingServer());
         Thread connectionThread = new Thread(() -> Server.serverConnect());
+        Thread muxThread = new Thread(() -> MuxServer.startMuxServer());
         Thread uiThread = new Thread(() -> launch(args));
 
         // Start all threads
         messagingThread.start();
         drawingThread.start();
         connectionThread.start();
+        muxThread.start();
         uiThread.start();
         // Optionally, wait for threads to finish if necessary
         try {
             messagingThread.join();
             drawingThread.join();
             connectionThread.join();
+            muxThread.join();
             uiThread.start();
         } catch (InterruptedException e) {
             e.printStackTrace();
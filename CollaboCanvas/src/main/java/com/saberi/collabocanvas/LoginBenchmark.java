@@ -0,0 +1,105 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures login latency against data files of 10k, 100k and 1M registered users:
+ * the {@link UserStore} index versus scanning the file per login, as the auth server used to.
+ * Prints the time to load the index, and the average time per login of each approach.
+ * Scans are slow at large sizes, so they are sampled far less often.
+ * <p>
+ * Usage: {@code java com.saberi.collabocanvas.LoginBenchmark [lookups] [scans]}
+ * </p>
+ */
+public class LoginBenchmark {
+    private static final int[] SIZES = {10_000, 100_000, 1_000_000};
+    private static volatile int sink; // keeps the JIT from discarding results
+
+    public static void main(String[] args) throws IOException, ParseException {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Random random = new Random(42);
+
+        for (int size : SIZES) {
+            File dataFile = File.createTempFile("users-" + size + "-", ".json");
+            dataFile.deleteOnExit();
+            writeUsers(dataFile, size);
+
+            long start = System.nanoTime();
+            UserStore store = new UserStore(dataFile);
+            long loadMillis = (System.nanoTime() - start) / 1_000_000;
+
+            // Warm up, then measure
+            for (int i = 0; i < lookups; i++) {
+                sink += store.login(userName(random.nextInt(size)), "password");
+            }
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int user = random.nextInt(size);
+                sink += store.login(userName(user), passwordOf(user));
+            }
+            long indexedNanos = (System.nanoTime() - start) / lookups;
+            store.close();
+
+            start = System.nanoTime();
+            for (int i = 0; i < scans; i++) {
+                int user = random.nextInt(size);
+                sink += scan(dataFile, userName(user), passwordOf(user));
+            }
+            long scanNanos = (System.nanoTime() - start) / scans;
+
+            System.out.printf("%,9d users: load %,6d ms | indexed login %,8d ns | file scan login %,12d ns%n",
+                    size, loadMillis, indexedNanos, scanNanos);
+            dataFile.delete();
+        }
+    }
+
+    private static void writeUsers(File dataFile, int size) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(dataFile))) {
+            for (int i = 0; i < size; i++) {
+                JSONObject record = new JSONObject();
+                record.put("Type", "REGISTER");
+                record.put("Username", userName(i));
+                record.put("Email", userName(i) + "@example.com");
+                record.put("Password", passwordOf(i));
+                writer.write(record.toJSONString());
+                writer.newLine();
+            }
+        }
+    }
+
+    private static String userName(int i) {
+        return "user" + i;
+    }
+
+    private static String passwordOf(int i) {
+        return "pw" + (i * 31 + 7);
+    }
+
+    /**
+     * The login check as it was before the index: parse every line until a match.
+     */
+    private static int scan(File dataFile, String userName, String password) throws IOException, ParseException {
+        JSONParser parser = new JSONParser();
+        try (BufferedReader reader = new BufferedReader(new FileReader(dataFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject record = (JSONObject) parser.parse(line);
+                if (record.get("Username").equals(userName) && record.get("Password").equals(password)) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -5,54 +5,138 @@ import org.json.simple.parser.JSONParser;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 /**
  * The MessagingServer class implements a multi-client chat server.
  * Clients can connect to the server, send messages, and receive messages broadcasted to all connected clients.
  */
 public class MessagingServer {
-    private static Set<ClientConnection> activeConnections = Collections.synchronizedSet(new HashSet<>());
+    private static Set<ChatPeer> activeConnections = Collections.synchronizedSet(new HashSet<>());
+    // Fans chat out in the order it arrived, so the threads reading from clients never wait for it
+    private static final Executor broadcaster = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "chat-broadcast");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static void startchatServer() {
         int serverPort = 1111;
-        System.out.println("********** WELCOME TO THE CHAT SERVER! **********");
+        Log.info("********** WELCOME TO THE CHAT SERVER! **********");
+        Executor handlers = ConnectionThreads.newExecutor("chat");
 
         try (ServerSocket serverSocket = new ServerSocket(serverPort)) {
-            System.out.println("Server is running on port " + serverPort);
+            ServerLifecycle.listening(serverSocket);
+            Log.info("Server is running on port " + serverPort);
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected!");
-                ClientConnection clientConnection = new ClientConnection(clientSocket);
-                activeConnections.add(clientConnection);
-                new Thread(clientConnection).start();
+                Log.info("New client connected!");
+                handlers.execute(new ClientConnection(clientSocket, handlers));
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (ServerLifecycle.isStopping()) {
+                Log.info("Chat Server stopped");
+            } else {
+                Log.warn("Error in chat server", e);
+            }
         }
     }
     /**
      * Sends a JSON message to all connected clients except the sender.
+     * The message is handed to the chat broadcast thread, which queues it for every recipient.
      *
      * @param jsonMessage The JSON-formatted message to broadcast.
      * @param sender      The client connection that sent the message (excluded from receiving it).
      */
-    static void sendToAllClients(JSONObject jsonMessage, ClientConnection sender) {
-        synchronized (activeConnections) {
-            for (ClientConnection client : activeConnections) {
-                if (client != sender) {
-                    client.sendJsonMessage(jsonMessage);
+    static void sendToAllClients(JSONObject jsonMessage, ChatPeer sender) {
+        // Encode once and hand the same bytes to every recipient
+        byte[] line = Frame.encodeLine(jsonMessage);
+        broadcaster.execute(() -> {
+            synchronized (activeConnections) {
+                for (ChatPeer client : activeConnections) {
+                    if (client != sender) {
+                        client.sendLine(line);
+                    }
                 }
             }
+        });
+    }
+    /**
+     * Applies a client's chat rate limit, telling the client when it is over.
+     *
+     * @param limiter the client's rate limiter.
+     * @param sender  the client connection that sent the message.
+     * @return {@code true} if the message may be broadcast.
+     */
+    static boolean admit(RateLimiter limiter, ChatPeer sender) {
+        if (limiter.allow(RateLimiter.Kind.CHAT)) {
+            return true;
+        }
+        JSONObject reply = limiter.rejection(RateLimiter.Kind.CHAT);
+        if (reply != null) {
+            sender.sendLine(Frame.encodeLine(reply));
+        }
+        return false;
+    }
+    /**
+     * Works out who a chat client is from its {@code hello}, e.g.
+     * {@code {"action":"hello","username":"bob","token":"..."}}, or from the mux
+     * {@code open} message, which carries the same fields.
+     * A session token wins over the username and must be valid; without one the username is
+     * trusted only while {@link ServerConfig#SESSION_REQUIRED} is off.
+     *
+     * @param hello the message.
+     * @return the user's name, or {@code null} if the client is refused.
+     */
+    static String authorize(JSONObject hello) {
+        if (hello.get("token") instanceof String) {
+            String userName = SessionTokens.verify((String) hello.get("token"));
+            if (userName == null) {
+                Log.info("Refused chat connection: invalid session token");
+            }
+            return userName;
+        }
+        if (ServerConfig.SESSION_REQUIRED) {
+            Log.info("Refused chat connection: missing session token");
+            return null;
         }
+        return hello.get("username") instanceof String ? (String) hello.get("username") : "anonymous";
+    }
+    /**
+     * Adds a client connection to the set of active connections.
+     *
+     * @param clientConnection The client connection to add.
+     */
+    static void addClientConnection(ChatPeer clientConnection) {
+        activeConnections.add(clientConnection);
+    }
+    /**
+     * Tells the other clients that a user left the chat and stops sending to the connection.
+     *
+     * @param clientConnection The client connection that closed.
+     * @param username         The user's name.
+     */
+    static void userLeft(ChatPeer clientConnection, String username) {
+        Log.info(username + " has left the chat!");
+
+        // Broadcast the user's exit message
+        JSONObject exitMessage = new JSONObject();
+        exitMessage.put("action", "user_left");
+        exitMessage.put("username", username);
+        sendToAllClients(exitMessage, clientConnection);
+
+        removeClientConnection(clientConnection);
     }
     /**
      * Removes a client connection from the set of active connections.
      *
      * @param clientConnection The client connection to remove.
      */
-    static void removeClientConnection(ClientConnection clientConnection) {
+    static void removeClientConnection(ChatPeer clientConnection) {
         synchronized (activeConnections) {
             activeConnections.remove(clientConnection);
         }
@@ -61,19 +145,28 @@ public class MessagingServer {
 /**
  * The ClientConnection class handles the interaction between the server and a connected client.
  * It processes incoming messages from the client and broadcasts them to other clients.
+ * Messages for the client are queued and written by a writer thread of its own.
  */
-class ClientConnection implements Runnable {
+class ClientConnection implements Runnable, ChatPeer {
     private Socket clientSocket;
-    private PrintWriter writer;
-    private BufferedReader reader;
+    private final Executor writerThreads;
+    private final WriteQueue messages = new WriteQueue();
+    private volatile OutputStream writer;
     private String username;
+    private boolean authorized; // reader thread only
+    private final RateLimiter limiter = new RateLimiter();
+    private final Liveness liveness = new Liveness(this::ping, this::disconnect, null);
+    // Reused for every message; only the reading thread parses
+    private final JSONParser parser = new JSONParser();
     /**
      * Constructs a new ClientConnection instance.
      *
-     * @param clientSocket The socket connection to the client.
+     * @param clientSocket  The socket connection to the client.
+     * @param writerThreads The executor that runs the connection's writer.
      */
-    public ClientConnection(Socket clientSocket) {
+    public ClientConnection(Socket clientSocket, Executor writerThreads) {
         this.clientSocket = clientSocket;
+        this.writerThreads = writerThreads;
     }
     /**
      * The main method for processing client messages and handling client interaction.
@@ -82,29 +175,57 @@ class ClientConnection implements Runnable {
     public void run() {
         try (
                 InputStream inputStream = clientSocket.getInputStream();
-                InputStreamReader inputStreamReader = new InputStreamReader(inputStream);
-                BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-                OutputStream outputStream = clientSocket.getOutputStream();
-                PrintWriter printWriter = new PrintWriter(outputStream, true)
+                FrameReader reader = new FrameReader(inputStream, ServerConfig.CHAT_MAX_LINE_BYTES);
+                OutputStream outputStream = new BufferedOutputStream(clientSocket.getOutputStream())
         ) {
-            this.writer = printWriter;
-            this.reader = bufferedReader;
+            this.writer = outputStream;
+            writerThreads.execute(this::writeQueuedLines);
+            authorized = !ServerConfig.SESSION_REQUIRED;
+            if (authorized) {
+                MessagingServer.addClientConnection(this);
+            }
 
             // Read and broadcast messages from the client
-            String clientMessage;
-            while ((clientMessage = bufferedReader.readLine()) != null) {
+            while (reader.nextLine()) {
                 try {
                     // Parse the incoming message as JSON directly
-                    JSONObject jsonMessage = (JSONObject) new JSONParser().parse(clientMessage);
+                    JSONObject jsonMessage = (JSONObject) parser.parse(
+                            new String(reader.buffer(), reader.lineOffset(), reader.lineLength(), StandardCharsets.UTF_8));
+                    liveness.heard();
+                    if (Liveness.isPong(jsonMessage)) {
+                        liveness.pong(jsonMessage);
+                        continue;
+                    }
+                    // Clients with a session send a hello first; older ones start chatting right away
+                    if (username == null && "hello".equals(jsonMessage.get("action"))) {
+                        username = MessagingServer.authorize(jsonMessage);
+                        if (username == null) {
+                            break;
+                        }
+                        authorized = true;
+                        liveness.expectPongs(); // clients that send a hello answer pings
+                        MessagingServer.addClientConnection(this);
+                        continue;
+                    }
+                    if (!authorized) {
+                        Log.info("Refused chat connection: missing session token");
+                        break;
+                    }
 
                     // Broadcast the parsed message to all other clients
-                    MessagingServer.sendToAllClients(jsonMessage, this);
-                } catch (org.json.simple.parser.ParseException e) {
-                    throw new RuntimeException(e);
+                    if (MessagingServer.admit(limiter, this)) {
+                        MessagingServer.sendToAllClients(jsonMessage, this);
+                    }
+                } catch (org.json.simple.parser.ParseException | ClassCastException e) {
+                    // One bad line must not end the connection; skip it
+                    Log.warn("Invalid chat message from " + username + ": "
+                            + new String(reader.buffer(), reader.lineOffset(), Math.min(reader.lineLength(), 200), StandardCharsets.UTF_8));
                 }
             }
+        } catch (FrameTooLargeException e) {
+            Log.info("Disconnecting " + username + ": " + e.getMessage());
         } catch (IOException e) {
-            System.out.println("Connection error with client: " + e.getMessage());
+            Log.warn("Connection error with client: " + e.getMessage());
         } finally {
             closeConnection();
         }
@@ -114,18 +235,32 @@ class ClientConnection implements Runnable {
      */
     private void closeConnection() {
         try {
-            System.out.println(username + " has left the chat!");
-
-            // Broadcast the user's exit message
-            JSONObject exitMessage = new JSONObject();
-            exitMessage.put("action", "user_left");
-            exitMessage.put("username", username);
-            MessagingServer.sendToAllClients(exitMessage, this);
-
-            MessagingServer.removeClientConnection(this);
+            liveness.stop();
+            messages.close();
+            if (authorized) {
+                MessagingServer.userLeft(this, username);
+            }
+            clientSocket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing connection", e);
+        }
+    }
+    /**
+     * Pings the client.
+     *
+     * @param ping the ping, shared by every client.
+     */
+    private void ping(Frame ping) {
+        sendLine(ping.toJsonLine());
+    }
+    /**
+     * Closes the socket so the reader loop ends and cleans up in {@link #closeConnection()}.
+     */
+    private void disconnect() {
+        try {
             clientSocket.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("Error closing connection", e);
         }
     }
     /**
@@ -134,6 +269,42 @@ class ClientConnection implements Runnable {
      * @param jsonMessage The JSON-formatted message to send.
      */
     void sendJsonMessage(JSONObject jsonMessage) {
-        writer.println(jsonMessage.toJSONString());
+        sendLine(Frame.encodeLine(jsonMessage));
+    }
+    /**
+     * Queues an already encoded line for the connected client.
+     *
+     * @param line the UTF-8 line, including its terminator; shared with other recipients and never modified.
+     */
+    @Override
+    public void sendLine(byte[] line) {
+        if (!messages.offer((byte) 0, line)) {
+            Log.warn("Chat queue full, disconnecting " + username);
+            disconnect();
+        }
+    }
+    /**
+     * Writes queued lines to the client, flushing whenever the queue runs empty.
+     */
+    private void writeQueuedLines() {
+        OutputStream out = writer;
+        try {
+            messages.drainTo(new WriteQueue.Sink() {
+                @Override
+                public void write(byte channel, byte[] line) throws IOException {
+                    out.write(line);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            });
+        } catch (IOException e) {
+            Log.warn("Failed to send to " + username + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        disconnect();
     }
 }
@@ -0,0 +1,246 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side of the multiplexed connection ({@link MuxProtocol}).
+ * One reader thread sorts incoming frames by channel, so the drawing and chat listeners
+ * and auth requests each wait only for their own traffic. It also answers the server's pings.
+ * Auth requests carry a {@code RequestId}, so a late reply to a request that timed out is
+ * told apart from the reply to the next one and dropped.
+ */
+class MuxClient {
+    // Marks the end of the stream in every channel's queue
+    private static final byte[] CLOSED = new byte[0];
+    private static final long REQUEST_TIMEOUT_SECONDS = 10;
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final BlockingQueue<byte[]> auth = new LinkedBlockingQueue<>();
+    private final BlockingQueue<byte[]> draw = new LinkedBlockingQueue<>();
+    private final BlockingQueue<byte[]> chat = new LinkedBlockingQueue<>();
+    private final JSONParser replyParser = new JSONParser(); // guarded by auth
+    private long lastRequestId; // guarded by auth
+    private volatile boolean closed;
+
+    /**
+     * Connects to the multiplexed server.
+     *
+     * @param host the server's hostname or IP address.
+     * @param port the server's port number.
+     * @throws IOException if the connection fails.
+     */
+    MuxClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Thread reader = new Thread(() -> readFrames(in), "mux-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readFrames(DataInputStream in) {
+        JSONParser parser = new JSONParser();
+        try {
+            byte[] frame;
+            while ((frame = MuxProtocol.read(in)) != null) {
+                if (frame[0] == MuxProtocol.CONTROL) {
+                    answerControl(parser, new String(frame, 1, frame.length - 1, StandardCharsets.UTF_8));
+                    continue;
+                }
+                BlockingQueue<byte[]> queue = queueOf(frame[0]);
+                if (queue != null) {
+                    byte[] payload = new byte[frame.length - 1];
+                    System.arraycopy(frame, 1, payload, 0, payload.length);
+                    queue.add(payload);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.out.println("Connection to server lost: " + e.getMessage());
+            }
+        } finally {
+            closed = true;
+            auth.add(CLOSED);
+            draw.add(CLOSED);
+            chat.add(CLOSED);
+        }
+    }
+
+    /**
+     * Answers the server's pings, which arrive on the control channel.
+     */
+    private void answerControl(JSONParser parser, String control) throws IOException {
+        try {
+            JSONObject message = (JSONObject) parser.parse(control);
+            if ("ping".equals(message.get("action"))) {
+                send(MuxProtocol.CONTROL, Liveness.pongFor(message).toJSONString().getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (ParseException | ClassCastException e) {
+            Log.warn("Invalid control message from server: " + control);
+        }
+    }
+
+    private BlockingQueue<byte[]> queueOf(byte channel) {
+        switch (channel) {
+            case MuxProtocol.AUTH:
+                return auth;
+            case MuxProtocol.DRAW:
+                return draw;
+            case MuxProtocol.CHAT:
+                return chat;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Sends one frame.
+     *
+     * @param channel the channel.
+     * @param payload the payload.
+     * @throws IOException if writing fails.
+     */
+    synchronized void send(byte channel, byte[] payload) throws IOException {
+        MuxProtocol.write(out, channel, payload, 0, payload.length);
+        out.flush();
+    }
+
+    /**
+     * Sends an auth request and waits for the result code.
+     *
+     * @param request the REGISTER/LOGIN request.
+     * @return the server's reply, or "Error" if there is none.
+     */
+    String request(JSONObject request) {
+        // Not on this object's lock: drawing and chat keep sending while a request waits
+        synchronized (auth) {
+            JSONObject tagged = new JSONObject();
+            tagged.putAll(request);
+            tagged.put("RequestId", ++lastRequestId);
+            return awaitReply(tagged, lastRequestId);
+        }
+    }
+
+    private String awaitReply(JSONObject request, long requestId) {
+        try {
+            send(MuxProtocol.AUTH, request.toJSONString().getBytes(StandardCharsets.UTF_8));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT_SECONDS);
+            while (true) {
+                byte[] reply = auth.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (reply == null) {
+                    return "Error";
+                }
+                if (reply == CLOSED) {
+                    auth.add(CLOSED); // for the next caller
+                    return "Error";
+                }
+                String result = resultOf(reply, requestId);
+                if (result != null) {
+                    return result;
+                }
+                // A late reply to an earlier request that timed out
+            }
+        } catch (IOException e) {
+            return "Error";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Error";
+        }
+    }
+
+    /**
+     * Reads the result of one request from an auth reply.
+     *
+     * @return the result code, followed by the session token if there is one, as the auth
+     * socket's original replies; {@code null} if the reply is for another request.
+     */
+    private String resultOf(byte[] reply, long requestId) {
+        try {
+            JSONObject answer = (JSONObject) replyParser.parse(new String(reply, StandardCharsets.UTF_8));
+            Object id = answer.get("RequestId");
+            if (!(id instanceof Number) || ((Number) id).longValue() != requestId) {
+                return null;
+            }
+            Object token = answer.get("Token");
+            return token != null ? answer.get("Result") + " " + token : String.valueOf(answer.get("Result"));
+        } catch (ParseException | ClassCastException e) {
+            return null; // untagged, e.g. the reply to a request the server could not parse
+        }
+    }
+
+    /**
+     * Waits for the next payload on the drawing or chat channel.
+     *
+     * @param channel {@link MuxProtocol#DRAW} or {@link MuxProtocol#CHAT}.
+     * @return the payload, or {@code null} once the connection is closed.
+     * @throws IOException if interrupted while waiting.
+     */
+    byte[] receive(byte channel) throws IOException {
+        BlockingQueue<byte[]> queue = queueOf(channel);
+        try {
+            byte[] payload = queue.take();
+            if (payload == CLOSED) {
+                queue.add(CLOSED); // for the next caller
+                return null;
+            }
+            return payload;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the server");
+        }
+    }
+
+    /**
+     * Starts receiving chat messages on this connection.
+     *
+     * @param userName the name shown to other users when this user leaves.
+     * @param token    the session token from the login, or {@code null}.
+     * @throws IOException if writing fails.
+     */
+    void openChat(String userName, String token) throws IOException {
+        JSONObject open = new JSONObject();
+        open.put("action", "open");
+        open.put("channel", "chat");
+        open.put("username", userName);
+        if (token != null) {
+            open.put("token", token);
+        }
+        send(MuxProtocol.CONTROL, open.toJSONString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks whether the connection is closed.
+     *
+     * @return {@code true} once the connection is closed.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the connection.
+     */
+    void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.saberi.collabocanvas;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Framing for the multiplexed connection, which carries authentication, drawing and chat
+ * over one socket instead of three.
+ * <p>
+ * Every frame is a 4 byte big-endian length, then one channel byte and the payload; the
+ * length covers both. Payloads are what the separate servers exchange:
+ * </p>
+ * <ul>
+ *     <li>{@link #AUTH}: a REGISTER/LOGIN request as JSON. A request with a {@code RequestId}
+ *     is answered with the same JSON reply as on the auth socket, echoing it; older clients
+ *     get the result code as text, followed by the session token for a successful LOGIN.</li>
+ *     <li>{@link #DRAW}: the drawing handshake, then drawing lines, or {@link BinaryProtocol}
+ *     frames (with their own length prefix) once the handshake picked the binary protocol.</li>
+ *     <li>{@link #CHAT}: chat messages as JSON.</li>
+ *     <li>{@link #CONTROL}: JSON messages about the connection itself, e.g.
+ *     {@code {"action":"open","channel":"chat","token":"..."}} to start receiving chat.</li>
+ * </ul>
+ */
+final class MuxProtocol {
+    static final byte CONTROL = 0;
+    static final byte AUTH = 1;
+    static final byte DRAW = 2;
+    static final byte CHAT = 3;
+
+    private MuxProtocol() {
+    }
+
+    /**
+     * Writes one frame. Not flushed.
+     *
+     * @param out     the stream.
+     * @param channel the channel.
+     * @param payload the payload.
+     * @param off     the offset of the payload.
+     * @param len     the length of the payload.
+     * @throws IOException if writing fails.
+     */
+    static void write(DataOutputStream out, byte channel, byte[] payload, int off, int len) throws IOException {
+        out.writeInt(len + 1);
+        out.writeByte(channel);
+        out.write(payload, off, len);
+    }
+
+    /**
+     * Reads one frame.
+     *
+     * @param in the stream.
+     * @return the channel byte followed by the payload, or {@code null} at the end of the stream.
+     * @throws IOException if reading fails or the frame is malformed.
+     */
+    static byte[] read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length > ServerConfig.DRAWING_MAX_LINE_BYTES) {
+            throw new FrameTooLargeException(ServerConfig.DRAWING_MAX_LINE_BYTES);
+        }
+        if (length <= 0) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+}
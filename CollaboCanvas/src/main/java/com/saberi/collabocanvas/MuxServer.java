@@ -0,0 +1,356 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Serves clients that use one multiplexed connection ({@link MuxProtocol}) instead of
+ * separate sockets for auth, drawing and chat. Requests are handed to the same code the
+ * separate servers use, so clients on either kind of connection share rooms and chat.
+ */
+public class MuxServer {
+    /**
+     * Listens for multiplexed connections on {@link ServerConfig#MUX_PORT}.
+     */
+    public static void startMuxServer() {
+        Executor handlers = ConnectionThreads.newExecutor("mux");
+        try (ServerSocket serverSocket = new ServerSocket(ServerConfig.MUX_PORT)) {
+            ServerLifecycle.listening(serverSocket);
+            Log.info("Mux Server started on port " + ServerConfig.MUX_PORT);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Log.info("New client connected!");
+                handlers.execute(new MuxConnection(socket, handlers));
+            }
+        } catch (IOException e) {
+            if (ServerLifecycle.isStopping()) {
+                Log.info("Mux Server stopped");
+            } else {
+                Log.warn("Error in server", e);
+            }
+        }
+    }
+}
+/**
+ * One multiplexed client connection: a reader thread that dispatches frames by channel, a
+ * writer thread for drawing traffic and one for chat messages, pings and auth replies, so
+ * neither waits for the other kind of traffic to be read by the client, and no other thread
+ * ever writes to the socket.
+ */
+class MuxConnection implements Runnable, DrawingPeer, ChatPeer {
+    private final Socket socket;
+    private final Executor writerThreads;
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final WriteQueue messages = new WriteQueue(); // chat, pings and auth replies
+    private final RateLimiter limiter = new RateLimiter();
+    private final Liveness liveness = new Liveness(this::ping, this::close, outbound);
+    private final JSONParser parser = new JSONParser();
+    private volatile DataOutputStream out;
+    private volatile String userName;
+    private volatile Room room;
+    private volatile boolean chatOpen;
+    private volatile boolean closed;
+    private boolean binaryIn; // reader thread only
+
+    /**
+     * Constructs a new connection.
+     *
+     * @param socket        the accepted socket.
+     * @param writerThreads the executor that runs the connection's writer.
+     */
+    MuxConnection(Socket socket, Executor writerThreads) {
+        this.socket = socket;
+        this.writerThreads = writerThreads;
+        liveness.expectPongs(); // every mux client answers pings on the control channel
+    }
+
+    /**
+     * Reads and dispatches frames until the client disconnects.
+     */
+    @Override
+    public void run() {
+        try (
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))
+        ) {
+            this.out = output;
+            writerThreads.execute(this::writeQueuedFrames);
+            writerThreads.execute(this::writeQueuedMessages);
+            byte[] frame;
+            while ((frame = MuxProtocol.read(in)) != null) {
+                handleFrame(frame);
+            }
+        } catch (IOException e) {
+            Log.warn("Connection error: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    private void handleFrame(byte[] frame) throws IOException {
+        liveness.heard();
+        switch (frame[0]) {
+            case MuxProtocol.AUTH:
+                try {
+                    JSONObject request = (JSONObject) parser.parse(payloadText(frame));
+                    Object requestId = request.get("RequestId");
+                    // Answered from the auth worker, so drawing and chat keep flowing meanwhile
+                    AuthWorkers.submit(request).thenAccept(result -> authReply(
+                            requestId == null ? result : Server.reply(requestId, result).toJSONString()));
+                } catch (ParseException | ClassCastException e) {
+                    authReply("Error");
+                }
+                break;
+            case MuxProtocol.DRAW:
+                handleDraw(frame);
+                break;
+            case MuxProtocol.CHAT:
+                if (chatOpen && MessagingServer.admit(limiter, this)) {
+                    try {
+                        MessagingServer.sendToAllClients((JSONObject) parser.parse(payloadText(frame)), this);
+                    } catch (ParseException | ClassCastException e) {
+                        Log.warn("Invalid chat message from " + userName);
+                    }
+                }
+                break;
+            case MuxProtocol.CONTROL:
+                handleControl(frame);
+                break;
+            default:
+                Log.warn("Unknown channel " + frame[0] + " from " + userName);
+        }
+    }
+
+    /**
+     * Handles drawing traffic: the first frame is the handshake, the rest take the same path
+     * as lines or binary frames on the drawing server.
+     */
+    private void handleDraw(byte[] frame) throws IOException {
+        int end = frame.length;
+        if (!binaryIn) {
+            while (end > 1 && (frame[end - 1] == '\n' || frame[end - 1] == '\r')) {
+                end--;
+            }
+        }
+        if (room == null) {
+            Handshake handshake = Handshake.parse(frame, 1, end - 1);
+            if (!drawingServer.authorize(handshake)) {
+                close();
+                return;
+            }
+            userName = handshake.getUserName();
+            binaryIn = handshake.isBinary();
+            room = drawingServer.join(this, handshake);
+        } else if (binaryIn) {
+            drawingServer.handleClientFrame(Arrays.copyOfRange(frame, 1, frame.length), this, parser);
+        } else {
+            drawingServer.handleClientLine(frame, 1, end - 1, this, parser);
+        }
+    }
+
+    private void handleControl(byte[] frame) {
+        try {
+            JSONObject control = (JSONObject) parser.parse(payloadText(frame));
+            if (Liveness.isPong(control)) {
+                liveness.pong(control);
+            } else if ("open".equals(control.get("action")) && "chat".equals(control.get("channel")) && !chatOpen) {
+                String chatUser = MessagingServer.authorize(control);
+                if (chatUser == null) {
+                    close();
+                    return;
+                }
+                if (userName == null) {
+                    userName = chatUser;
+                }
+                chatOpen = true;
+                MessagingServer.addClientConnection(this);
+            }
+        } catch (ParseException | ClassCastException e) {
+            Log.warn("Invalid control message from " + userName);
+        }
+    }
+
+    /**
+     * Pings the client on the control channel, so it is answered whatever the client has open.
+     *
+     * @param ping the ping, shared by every client.
+     */
+    private void ping(Frame ping) {
+        if (!messages.offer(MuxProtocol.CONTROL, ping.toJsonLine())) {
+            Log.warn("Message queue full, disconnecting " + userName);
+            close();
+        }
+    }
+
+    /**
+     * Queues an auth reply; called by the auth workers, which must not wait for the socket.
+     */
+    private void authReply(String reply) {
+        if (!messages.offer(MuxProtocol.AUTH, reply.getBytes(StandardCharsets.UTF_8))) {
+            Log.warn("Message queue full, disconnecting " + userName);
+            close();
+        }
+    }
+
+    private static String payloadText(byte[] frame) {
+        return new String(frame, 1, frame.length - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Drains the drawing queue onto the socket, flushing whenever the queue runs empty.
+     */
+    private void writeQueuedFrames() {
+        DataOutputStream output = out;
+        try {
+            boolean binary = false;
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                byte[] bytes = frame.toBytes(binary);
+                synchronized (output) {
+                    // Lines go without their newline: the frame already delimits them
+                    int length = !binary && bytes.length > 0 && bytes[bytes.length - 1] == '\n' ? bytes.length - 1 : bytes.length;
+                    MuxProtocol.write(output, MuxProtocol.DRAW, bytes, 0, length);
+                    if (outbound.isEmpty()) {
+                        output.flush();
+                    }
+                }
+                if (frame.getSwitchesTo() != null) {
+                    binary = BinaryProtocol.NAME.equals(frame.getSwitchesTo());
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Write error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        close();
+    }
+
+    /**
+     * Drains the message queue onto the socket, next to the drawing writer.
+     */
+    private void writeQueuedMessages() {
+        DataOutputStream output = out;
+        try {
+            messages.drainTo(new WriteQueue.Sink() {
+                @Override
+                public void write(byte channel, byte[] message) throws IOException {
+                    // Lines go without their newline: the frame already delimits them
+                    int length = message.length > 0 && message[message.length - 1] == '\n' ? message.length - 1 : message.length;
+                    synchronized (output) {
+                        MuxProtocol.write(output, channel, message, 0, length);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    synchronized (output) {
+                        output.flush();
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Log.warn("Write error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        close();
+    }
+
+    @Override
+    public void send(Frame frame) {
+        if (!outbound.offer(frame)) {
+            Log.warn("Outbound queue full, disconnecting " + userName);
+            close();
+        }
+    }
+
+    @Override
+    public void sendLine(byte[] line) {
+        if (!messages.offer(MuxProtocol.CHAT, line)) {
+            Log.warn("Chat queue full, disconnecting " + userName);
+            close();
+        }
+    }
+
+    @Override
+    public String getUserName() {
+        return userName;
+    }
+
+    @Override
+    public Room getRoom() {
+        return room;
+    }
+
+    @Override
+    public long getLagMillis() {
+        return outbound.getLagMillis();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return outbound.getDroppedFrames();
+    }
+
+    @Override
+    public long getCoalescedFrames() {
+        return outbound.getCoalescedFrames();
+    }
+
+    @Override
+    public RateLimiter getRateLimiter() {
+        return limiter;
+    }
+
+    @Override
+    public Liveness getLiveness() {
+        return liveness;
+    }
+
+    @Override
+    public boolean isDrained() {
+        return outbound.isEmpty();
+    }
+
+    /**
+     * Leaves the room and the chat and closes the socket.
+     */
+    private void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (room != null) {
+            drawingServer.markOffline(userName);
+            drawingServer.removeClient(this);
+        }
+        if (chatOpen) {
+            MessagingServer.userLeft(this, userName);
+        }
+        liveness.stop();
+        outbound.close();
+        messages.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing connection", e);
+        }
+        Log.info("Client disconnected. user=" + userName);
+    }
+}
@@ -0,0 +1,439 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.parser.JSONParser;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking engine for the drawing server.
+ * One acceptor hands new sockets to a small fixed set of selector threads ({@link IoLoop}),
+ * which do all reads and writes. The wire format is the same newline delimited JSON
+ * used by {@link ClientHandler}, so existing clients work unchanged.
+ */
+class NioDrawingServer {
+    private final int port;
+    private final IoLoop[] loops;
+    private int nextLoop;
+
+    /**
+     * Constructs a new NIO drawing server.
+     *
+     * @param port      the port to listen on.
+     * @param ioThreads the number of selector threads.
+     */
+    NioDrawingServer(int port, int ioThreads) {
+        this.port = port;
+        this.loops = new IoLoop[ioThreads];
+    }
+
+    /**
+     * Binds the server socket, starts the selector threads and accepts clients
+     * on the calling thread until the server socket is closed.
+     *
+     * @throws IOException if the server socket cannot be opened.
+     */
+    void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+            Thread thread = new Thread(loops[i], "drawing-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            ServerLifecycle.listening(serverChannel);
+            Log.info("Drawing Server (NIO, " + loops.length + " I/O threads) started on port " + port);
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                Log.info("New client connected!");
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                IoLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.register(new NioDrawingConnection(channel, loop));
+            }
+        }
+    }
+
+    /**
+     * A selector thread serving a subset of the connections.
+     * Other threads never touch the selector directly; they queue tasks and wake it up.
+     */
+    static class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Registers a new connection with this loop.
+         *
+         * @param connection the connection to register.
+         */
+        void register(NioDrawingConnection connection) {
+            execute(() -> {
+                try {
+                    SelectionKey key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.onRegistered(key);
+                } catch (IOException e) {
+                    connection.close();
+                }
+            });
+        }
+
+        /**
+         * Runs a task on the loop thread.
+         *
+         * @param task the task to run.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            Log.warn("Drawing I/O loop task failed", e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioDrawingConnection connection = (NioDrawingConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // A bug or a malformed message from one client must not stop the loop for the others
+                            Log.warn("Error handling drawing client " + connection.getUserName() + ", disconnecting", e);
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                Log.warn("Drawing I/O loop stopped", e);
+            }
+        }
+    }
+}
+
+/**
+ * A drawing client served by the NIO engine.
+ * Keeps its own read buffer for line framing and a bounded queue of frames waiting to be written.
+ */
+class NioDrawingConnection implements DrawingPeer {
+    private static final byte[] USERNAME_PROMPT = "Enter your username:\n".getBytes(StandardCharsets.UTF_8);
+
+    final SocketChannel channel;
+    private final NioDrawingServer.IoLoop loop;
+    private final JSONParser parser = new JSONParser();
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final RateLimiter limiter = new RateLimiter();
+    private final Liveness liveness;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private ByteBuffer writing = ByteBuffer.wrap(USERNAME_PROMPT);
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8 * 1024);
+    private int scanned; // loop thread only: bytes of the partial line known to hold no newline
+    private volatile String userName;
+    private volatile Room room;
+    private volatile boolean closed;
+    // Touched only by the loop thread
+    private boolean binaryIn;
+    private boolean binaryOut;
+
+    /**
+     * Constructs a new connection for an accepted channel.
+     *
+     * @param channel the non-blocking socket channel.
+     * @param loop    the selector thread that owns the channel.
+     */
+    NioDrawingConnection(SocketChannel channel, NioDrawingServer.IoLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+        this.liveness = new Liveness(this::ping, () -> loop.execute(this::close), outbound);
+    }
+
+    /**
+     * Called on the loop thread once the channel is registered; sends the username prompt.
+     * The client starts receiving broadcasts once its handshake line arrives.
+     *
+     * @param key the selection key of the channel.
+     */
+    void onRegistered(SelectionKey key) {
+        this.key = key;
+        scheduleWrite();
+    }
+
+    /**
+     * Reads what is available and processes every complete line, or every complete
+     * binary frame once the connection switched to the binary protocol.
+     *
+     * @throws IOException if the channel fails or the peer sent an oversized or malformed frame.
+     */
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        byte[] array = readBuffer.array();
+        int start = 0;
+        int limit = readBuffer.position();
+        while (!closed && start < limit) {
+            if (binaryIn) {
+                if (limit - start < 4) {
+                    break;
+                }
+                int length = BinaryProtocol.frameLength(array, start);
+                if (length > ServerConfig.DRAWING_MAX_LINE_BYTES) {
+                    throw new FrameTooLargeException(ServerConfig.DRAWING_MAX_LINE_BYTES);
+                }
+                if (length <= 0) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (limit - start < 4 + length) {
+                    break;
+                }
+                byte[] frame = Arrays.copyOfRange(array, start, start + 4 + length);
+                start += 4 + length;
+                drawingServer.handleClientFrame(frame, this, parser);
+            } else {
+                int newline = indexOf(array, '\n', Math.max(start, scanned), limit);
+                if (newline < 0) {
+                    scanned = limit;
+                    break;
+                }
+                int end = newline > start && array[newline - 1] == '\r' ? newline - 1 : newline;
+                handleLine(array, start, end - start);
+                start = newline + 1;
+            }
+        }
+        if (closed) {
+            return;
+        }
+        readBuffer.flip();
+        readBuffer.position(start);
+        readBuffer.compact();
+        scanned = Math.max(0, scanned - start);
+        if (readBuffer.capacity() > BufferPool.BUFFER_SIZE && readBuffer.position() < BufferPool.BUFFER_SIZE) {
+            // Done with an unusually long line: don't hold on to its buffer
+            ByteBuffer standard = ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+            readBuffer.flip();
+            standard.put(readBuffer);
+            readBuffer = standard;
+        } else if (!readBuffer.hasRemaining()) {
+            // A partial line or frame filled the buffer: grow it up to the configured limit,
+            // plus the length prefix of a binary frame
+            int maxBuffer = binaryIn ? ServerConfig.DRAWING_MAX_LINE_BYTES + 4 : ServerConfig.DRAWING_MAX_LINE_BYTES;
+            if (readBuffer.capacity() >= maxBuffer) {
+                throw new FrameTooLargeException(ServerConfig.DRAWING_MAX_LINE_BYTES);
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, maxBuffer));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    private static int indexOf(byte[] array, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (array[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Handles one complete line from the client: the first line is the handshake,
+     * everything after it goes through {@link drawingServer#handleClientLine}.
+     *
+     * @param buf the read buffer.
+     * @param off the offset of the line.
+     * @param len the length of the line, without its terminator.
+     * @throws IOException if the client may not join the room it asked for.
+     */
+    private void handleLine(byte[] buf, int off, int len) throws IOException {
+        if (userName == null) {
+            Handshake handshake = Handshake.parse(buf, off, len);
+            if (!drawingServer.authorize(handshake)) {
+                close();
+                return;
+            }
+            userName = handshake.getUserName();
+            binaryIn = handshake.isBinary();
+            room = drawingServer.join(this, handshake);
+            return;
+        }
+        drawingServer.handleClientLine(buf, off, len, this, parser);
+    }
+
+    /**
+     * Writes queued frames until the socket buffer is full or the queue is empty.
+     *
+     * @throws IOException if the channel fails.
+     */
+    void onWritable() throws IOException {
+        while (true) {
+            if (writing == null) {
+                Frame frame = outbound.poll();
+                if (frame == null) {
+                    break;
+                }
+                writing = frame.toByteBuffer(binaryOut);
+                if (frame.getSwitchesTo() != null) {
+                    binaryOut = BinaryProtocol.NAME.equals(frame.getSwitchesTo());
+                }
+            }
+            channel.write(writing);
+            if (writing.hasRemaining()) {
+                return; // socket buffer full, wait for the next OP_WRITE
+            }
+            writing = null;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        writeScheduled.set(false);
+        // A broadcaster may have queued a frame between the last poll and the flag reset
+        if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Queues a frame for the client. Safe to call from any thread.
+     *
+     * @param frame the frame to send.
+     */
+    @Override
+    public void send(Frame frame) {
+        if (closed) {
+            return;
+        }
+        if (!outbound.offer(frame)) {
+            Log.warn("Outbound queue full, disconnecting " + userName);
+            loop.execute(this::close);
+            return;
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Pings the client once it has joined a room; before that it expects the welcome.
+     *
+     * @param ping the ping, shared by every client.
+     */
+    private void ping(Frame ping) {
+        if (room != null) {
+            send(ping);
+        }
+    }
+
+    /**
+     * Makes sure the loop watches the channel for writability.
+     */
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                if (key != null && key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+    }
+
+    @Override
+    public String getUserName() {
+        return userName;
+    }
+
+    @Override
+    public Room getRoom() {
+        return room;
+    }
+
+    @Override
+    public long getLagMillis() {
+        return outbound.getLagMillis();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return outbound.getDroppedFrames();
+    }
+
+    @Override
+    public long getCoalescedFrames() {
+        return outbound.getCoalescedFrames();
+    }
+
+    @Override
+    public RateLimiter getRateLimiter() {
+        return limiter;
+    }
+
+    @Override
+    public Liveness getLiveness() {
+        return liveness;
+    }
+
+    @Override
+    public boolean isDrained() {
+        return outbound.isEmpty();
+    }
+
+    /**
+     * Closes the connection and removes the client from the server.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (room != null) { // joined, so counted as a session
+            drawingServer.markOffline(userName);
+        }
+        drawingServer.removeClient(this);
+        liveness.stop();
+        outbound.close();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing connection", e);
+        }
+        Log.info("Client disconnected. user=" + userName);
+    }
+}
@@ -0,0 +1,242 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded queue of frames waiting to be written to one drawing client.
+ * Broadcasting only offers frames here; the client's own writer drains it,
+ * so a slow peer can never stall delivery to anyone else.
+ * <p>
+ * Once more than {@link ServerConfig#LAG_THRESHOLD} frames are waiting, the client is lagging:
+ * stroke segments are then merged into the sender's last queued segment of the same stroke
+ * where possible (see {@link StrokeMerger}),
+ * so the client catches up with the same lines drawn in fewer, smaller frames.
+ * The queue also remembers when each frame was queued, to report the client's lag.
+ * Clients on slow links (see {@link Liveness}) count as lagging sooner.
+ * </p>
+ */
+class OutboundQueue {
+    /**
+     * What to do when a frame arrives and the queue is full.
+     */
+    enum OverflowPolicy {
+        /** Drop the oldest queued pen point to make room. */
+        DROP_OLDEST,
+        /** Replace the newest queued pen point of the same local sender, otherwise drop the oldest one. */
+        COALESCE,
+        /** Give up on the client and disconnect it. */
+        DISCONNECT
+    }
+
+    // How far back to look for the sender's previous frame when merging
+    private static final int COALESCE_SCAN = 64;
+
+    private final ArrayDeque<Entry> frames = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private long droppedFrames;
+    private long coalescedFrames;
+    private boolean closed;
+    private volatile int lagThreshold = ServerConfig.LAG_THRESHOLD;
+
+    /**
+     * Constructs a queue with the configured capacity and overflow policy.
+     */
+    OutboundQueue() {
+        this(ServerConfig.OUTBOUND_CAPACITY, ServerConfig.OUTBOUND_OVERFLOW);
+    }
+
+    /**
+     * Constructs a new outbound queue.
+     *
+     * @param capacity the maximum number of queued frames.
+     * @param policy   the overflow policy.
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a frame, applying the overflow policy if the queue is full.
+     *
+     * @param frame the frame to add.
+     * @return {@code false} if the client must be disconnected because the frame could not be queued.
+     */
+    synchronized boolean offer(Frame frame) {
+        if (closed) {
+            return true;
+        }
+        if (frames.size() >= lagThreshold && coalesce(frame)) {
+            return true;
+        }
+        if (frames.size() >= capacity && !makeRoom(frame)) {
+            return false;
+        }
+        frames.addLast(new Entry(frame, System.nanoTime()));
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Merges a stroke segment into the sender's last queued frame while the client is lagging.
+     * Frames of other senders queued after it are independent, so the merged frame keeps its
+     * place and the time it was first queued. Frames without a sender, e.g. from other nodes,
+     * could be anyone's and are never merged.
+     *
+     * @param incoming the frame being queued.
+     * @return {@code true} if the frame was merged and must not be queued itself.
+     */
+    private boolean coalesce(Frame incoming) {
+        if (incoming.getSender() == null || !"stroke".equals(incoming.getAction())) {
+            return false;
+        }
+        Entry last = null;
+        int scanned = 0;
+        for (Iterator<Entry> it = frames.descendingIterator(); it.hasNext() && scanned < COALESCE_SCAN; scanned++) {
+            Entry entry = it.next();
+            if (entry.frame.getSender() == incoming.getSender()) {
+                last = entry;
+                break;
+            }
+        }
+        if (last == null) {
+            return false;
+        }
+        if (last.merging == null) {
+            last.merging = StrokeMerger.start(last.frame);
+        }
+        if (last.merging == null || !StrokeMerger.append(last.merging, incoming)) {
+            return false;
+        }
+        coalescedFrames++;
+        ServerMetrics.coalesced.increment();
+        return true;
+    }
+
+    /**
+     * Frees one slot for the incoming frame according to the policy.
+     *
+     * @param incoming the frame that does not fit.
+     * @return {@code true} if a slot was freed.
+     */
+    private boolean makeRoom(Frame incoming) {
+        if (policy == OverflowPolicy.DISCONNECT) {
+            return false;
+        }
+        if (policy == OverflowPolicy.COALESCE && incoming.isDrawPoint()) {
+            Entry last = frames.peekLast();
+            if (last != null && last.frame.isDrawPoint() && last.merging == null
+                    && incoming.getSender() != null && last.frame.getSender() == incoming.getSender()) {
+                frames.pollLast();
+                droppedFrames++;
+                return true;
+            }
+        }
+        for (Iterator<Entry> it = frames.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.frame.isDrawPoint() && entry.merging == null) { // merged runs carry whole lines
+                it.remove();
+                droppedFrames++;
+                return true;
+            }
+        }
+        return false; // only shapes, texts and replies queued: nothing we may drop
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @return the next frame, or {@code null} once the queue is closed.
+     * @throws InterruptedException if the writer thread is interrupted.
+     */
+    synchronized Frame take() throws InterruptedException {
+        while (frames.isEmpty() && !closed) {
+            wait();
+        }
+        return closed ? null : frames.pollFirst().toFrame();
+    }
+
+    /**
+     * Removes the next frame without waiting.
+     *
+     * @return the next frame, or {@code null} if the queue is empty.
+     */
+    synchronized Frame poll() {
+        Entry entry = frames.pollFirst();
+        return entry != null ? entry.toFrame() : null;
+    }
+
+    /**
+     * Sets how many queued frames make the client count as lagging.
+     *
+     * @param lagThreshold the number of frames.
+     */
+    void setLagThreshold(int lagThreshold) {
+        this.lagThreshold = lagThreshold;
+    }
+
+    /**
+     * Checks whether no frames are waiting.
+     *
+     * @return {@code true} if the queue is empty.
+     */
+    synchronized boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    /**
+     * Gets the number of frames dropped by the overflow policy so far.
+     *
+     * @return the number of dropped frames.
+     */
+    synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Gets the number of frames merged into others while the client was lagging.
+     *
+     * @return the number of merged frames.
+     */
+    synchronized long getCoalescedFrames() {
+        return coalescedFrames;
+    }
+
+    /**
+     * Gets how far the client is behind: how long the oldest waiting frame has been queued.
+     *
+     * @return the lag in milliseconds, {@code 0} when nothing is waiting.
+     */
+    synchronized long getLagMillis() {
+        Entry first = frames.peekFirst();
+        return first != null ? (System.nanoTime() - first.enqueuedAt) / 1_000_000 : 0;
+    }
+
+    /**
+     * Discards all queued frames and wakes up a waiting writer.
+     */
+    synchronized void close() {
+        closed = true;
+        frames.clear();
+        notifyAll();
+    }
+
+    private static final class Entry {
+        final Frame frame;
+        final long enqueuedAt;
+        JSONObject merging; // pen input merged into this frame, if any
+
+        Entry(Frame frame, long enqueuedAt) {
+            this.frame = frame;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        Frame toFrame() {
+            return merging != null ? StrokeMerger.finish(merging, frame.getSender()) : frame;
+        }
+    }
+}
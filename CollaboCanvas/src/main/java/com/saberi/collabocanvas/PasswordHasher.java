@@ -0,0 +1,90 @@
+package com.saberi.collabocanvas;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Hashes passwords for the data file with PBKDF2-HMAC-SHA256 and a random salt per user,
+ * stored as {@code pbkdf2$<iterations>$<salt>$<hash>} (salt and hash in base64).
+ * The iteration count is kept with each hash, so raising
+ * {@link ServerConfig#PASSWORD_ITERATIONS} only affects new registrations.
+ * Passwords stored in plain text by earlier versions are still accepted.
+ * <p>
+ * Both hashing and checking are deliberately slow; they run on the {@link AuthWorkers}.
+ * </p>
+ */
+final class PasswordHasher {
+    private static final String PREFIX = "pbkdf2$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+
+    private PasswordHasher() {
+    }
+
+    /**
+     * Hashes a password with a new salt.
+     *
+     * @param password the password.
+     * @return the stored form.
+     */
+    static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        int iterations = ServerConfig.PASSWORD_ITERATIONS;
+        Base64.Encoder base64 = Base64.getEncoder();
+        return PREFIX + iterations + "$" + base64.encodeToString(salt)
+                + "$" + base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Checks whether a value is already in the stored form, e.g. in an exported user file.
+     *
+     * @param value the password or hash.
+     * @return {@code true} for a hash made by {@link #hash(String)}.
+     */
+    static boolean isHash(String value) {
+        return value.startsWith(PREFIX) && value.split("\\$").length == 4;
+    }
+
+    /**
+     * Checks a password against its stored form.
+     *
+     * @param password the password to check.
+     * @param stored   the stored hash, or a plain text password from an older data file.
+     * @return {@code true} if they match.
+     */
+    static boolean verify(String password, String stored) {
+        if (!stored.startsWith(PREFIX)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[3]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+        } catch (IllegalArgumentException e) { // bad base64 or iteration count
+            return false;
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " unavailable", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
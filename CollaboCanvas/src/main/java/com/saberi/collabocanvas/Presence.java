@@ -0,0 +1,101 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.Set;
+
+/**
+ * Tells drawing clients who is online. A client gets a snapshot of every user online on any
+ * node once it has joined,
+ * <pre>{"action":"presence","type":"snapshot","users":["alice","bob"]}</pre>
+ * and afterwards only the changes, as they happen:
+ * <pre>{"action":"presence","type":"join","username":"carol"}
+ * {"action":"presence","type":"leave","username":"bob"}</pre>
+ * Changes on other nodes arrive with their periodic presence on the cluster bus.
+ * <p>
+ * A user may have several sessions, on this node and on others. Clients hear a {@code join}
+ * only when the user's first session anywhere starts, and a {@code leave} only when the last
+ * one ends. Each side updates its own record before checking the other, so when a user's
+ * last sessions end on two nodes at once at least one {@code leave} is sent; clients ignore
+ * a repeated one.
+ * </p>
+ */
+final class Presence {
+    private Presence() {
+    }
+
+    /**
+     * Builds the snapshot for a client that just joined.
+     *
+     * @return the snapshot message.
+     */
+    static JSONObject snapshot() {
+        JSONArray users = new JSONArray();
+        users.addAll(Cluster.getOnlineUsers());
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("action", "presence");
+        snapshot.put("type", "snapshot");
+        snapshot.put("users", users);
+        return snapshot;
+    }
+
+    /**
+     * Tells every drawing client on this node that a user came online here, unless the user
+     * already was on another node.
+     *
+     * @param userName the user's name, whose first session on this node started.
+     */
+    static void joined(String userName) {
+        if (!Cluster.isOnlineRemotely(userName, null)) {
+            drawingServer.sendToAll(change("join", userName));
+        }
+    }
+
+    /**
+     * Tells every drawing client on this node that a user went offline here, unless the user
+     * is still on another node.
+     *
+     * @param userName the user's name, whose last session on this node ended.
+     */
+    static void left(String userName) {
+        if (!Cluster.isOnlineRemotely(userName, null)) {
+            drawingServer.sendToAll(change("leave", userName));
+        }
+    }
+
+    /**
+     * Passes on what changed in another node's users since its last presence. Users still
+     * online here or on a third node neither join nor leave.
+     *
+     * @param node   the node whose users changed.
+     * @param before the node's users as last published, or {@code null} for a new node.
+     * @param after  the node's users now.
+     */
+    static void remoteChanged(String node, Set<String> before, Set<String> after) {
+        for (String userName : after) {
+            if ((before == null || !before.contains(userName)) && !isOnlineElsewhere(userName, node)) {
+                drawingServer.sendToAll(change("join", userName));
+            }
+        }
+        if (before != null) {
+            for (String userName : before) {
+                if (!after.contains(userName) && !isOnlineElsewhere(userName, node)) {
+                    drawingServer.sendToAll(change("leave", userName));
+                }
+            }
+        }
+    }
+
+    private static boolean isOnlineElsewhere(String userName, String node) {
+        return drawingServer.isOnline(userName) || Cluster.isOnlineRemotely(userName, node);
+    }
+
+    private static JSONObject change(String type, String userName) {
+        JSONObject change = new JSONObject();
+        change.put("action", "presence");
+        change.put("type", type);
+        change.put("username", userName);
+        return change;
+    }
+}
@@ -0,0 +1,115 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-connection limits on what a client may send, so one scripted or misbehaving client
+ * cannot flood every other member of its room. Drawing, shapes, saves and chat have separate
+ * token buckets, configured in {@link ServerConfig}. Messages over the limit are dropped and
+ * the client gets a control reply, at most one per kind per second:
+ * {@code {"action":"control","type":"rate_limited","limit":"draw","retryAfterMs":12}}.
+ * Not thread-safe; each limiter belongs to one connection's reader.
+ */
+final class RateLimiter {
+    /** A kind of message with its own limit; counts the messages rejected on all connections. */
+    enum Kind {
+        DRAW("draw", ServerConfig.RATE_DRAW, ServerConfig.RATE_DRAW_BURST),
+        SHAPE("shape", ServerConfig.RATE_SHAPE, ServerConfig.RATE_SHAPE_BURST),
+        SAVE("save", ServerConfig.RATE_SAVE, ServerConfig.RATE_SAVE_BURST),
+        CHAT("chat", ServerConfig.RATE_CHAT, ServerConfig.RATE_CHAT_BURST);
+
+        final String label;
+        final int perSecond;
+        final int burst;
+        final LongAdder rejected = new LongAdder();
+
+        Kind(String label, int perSecond, int burst) {
+            this.label = label;
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+    }
+
+    private static final long NOTIFY_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final TokenBucket[] buckets = new TokenBucket[Kind.values().length];
+    private final long[] notifiedAt = new long[Kind.values().length];
+
+    /**
+     * Constructs a limiter with full buckets.
+     */
+    RateLimiter() {
+        for (Kind kind : Kind.values()) {
+            if (kind.perSecond > 0) {
+                buckets[kind.ordinal()] = new TokenBucket(kind.perSecond, kind.burst);
+            }
+            notifiedAt[kind.ordinal()] = System.nanoTime() - NOTIFY_INTERVAL_NANOS;
+        }
+    }
+
+    /**
+     * Gets the limit a drawing action counts against.
+     *
+     * @param action the action of the message.
+     * @return the kind; anything that is not pen input or a save counts as a shape.
+     */
+    static Kind kindOf(String action) {
+        if ("draw".equals(action) || "stroke".equals(action)) {
+            return Kind.DRAW;
+        }
+        return "save".equals(action) ? Kind.SAVE : Kind.SHAPE;
+    }
+
+    /**
+     * Admits a message if its limit allows.
+     *
+     * @param kind the kind of message.
+     * @return {@code true} if the message is admitted.
+     */
+    boolean allow(Kind kind) {
+        TokenBucket bucket = buckets[kind.ordinal()];
+        if (bucket == null || bucket.tryAcquire()) {
+            return true;
+        }
+        kind.rejected.increment();
+        return false;
+    }
+
+    /**
+     * Builds the control reply for a rejected message, unless the client was told recently.
+     *
+     * @param kind the kind of message rejected.
+     * @return the reply, or {@code null} if one was sent within the last second.
+     */
+    JSONObject rejection(Kind kind) {
+        long now = System.nanoTime();
+        if (now - notifiedAt[kind.ordinal()] < NOTIFY_INTERVAL_NANOS) {
+            return null;
+        }
+        notifiedAt[kind.ordinal()] = now;
+        JSONObject reply = new JSONObject();
+        reply.put("action", "control");
+        reply.put("type", "rate_limited");
+        reply.put("limit", kind.label);
+        reply.put("retryAfterMs", buckets[kind.ordinal()].millisUntilNext());
+        return reply;
+    }
+
+    /**
+     * Describes how many messages were rejected, by kind.
+     *
+     * @return e.g. {@code draw:0,shape:0,save:2,chat:0}.
+     */
+    static String report() {
+        StringBuilder report = new StringBuilder();
+        for (Kind kind : Kind.values()) {
+            if (report.length() > 0) {
+                report.append(',');
+            }
+            report.append(kind.label).append(':').append(kind.rejected.sum());
+        }
+        return report.toString();
+    }
+}
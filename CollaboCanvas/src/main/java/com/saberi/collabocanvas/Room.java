@@ -0,0 +1,178 @@
+package com.saberi.collabocanvas;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named board on the drawing server with its own members and canvas.
+ * Broadcasts only walk the members of the sender's room, so a busy room costs nothing
+ * for clients in other rooms. Rooms are chosen in the handshake. When the last member leaves,
+ * the drawing server saves the board and evicts the room, see {@link #evict()}; the next
+ * client asking for it gets the board back from {@link CanvasStore}.
+ */
+final class Room {
+    /** The room clients join when they don't ask for one. */
+    static final String DEFAULT = "main";
+
+    private final String name;
+    // Concurrent so broadcasts never hold a lock that connects and disconnects wait on
+    private final Set<DrawingPeer> members = ConcurrentHashMap.newKeySet();
+    // Everything drawn so far, sent to clients when they join
+    private final CanvasState canvas = new CanvasState();
+    private boolean evicted; // guarded by canvas
+    private boolean readOnly; // guarded by canvas
+
+    /**
+     * Constructs a new, empty room.
+     *
+     * @param name the name of the room.
+     */
+    Room(String name) {
+        this.name = name;
+        this.readOnly = ServerLifecycle.isStopping();
+    }
+
+    /**
+     * Brings a client's canvas up to date and starts delivering the room's broadcasts to it.
+     * A reconnecting client gets only the events it missed when they are still logged,
+     * and a full snapshot otherwise.
+     *
+     * @param client    the client joining the room.
+     * @param handshake the handshake the client sent.
+     * @return {@code false} if the room was evicted meanwhile and the client must look it up again.
+     */
+    boolean join(DrawingPeer client, Handshake handshake) {
+        synchronized (canvas) {
+            if (evicted) {
+                return false;
+            }
+            List<Frame> missed = handshake.getLastSeq() >= 0 ? canvas.since(handshake.getLastSeq()) : null;
+            // Replaying more than half a queue would just overflow it; a snapshot is smaller then
+            if (missed != null && missed.size() <= ServerConfig.OUTBOUND_CAPACITY / 2) {
+                for (Frame frame : missed) {
+                    // The client drew its own events itself
+                    if (frame.getSender() == null || !handshake.getUserName().equals(frame.getSender().getUserName())) {
+                        client.send(frame);
+                    }
+                }
+            } else {
+                for (Frame part : canvas.snapshot()) {
+                    client.send(part);
+                }
+            }
+            members.add(client);
+        }
+        return true;
+    }
+
+    /**
+     * Marks the room as evicted if nobody is in it, so no client joins it and no event is
+     * recorded in it afterwards; the caller then saves the canvas and drops the room.
+     *
+     * @return {@code true} if the room was empty and is now evicted.
+     */
+    boolean evict() {
+        synchronized (canvas) {
+            if (!members.isEmpty()) {
+                return false;
+            }
+            evicted = true;
+            return true;
+        }
+    }
+
+    /**
+     * Stops recording drawing events, so the canvas no longer changes, e.g. before the final
+     * save on shutdown. Waits for a relay in progress; events arriving afterwards are dropped.
+     */
+    void stopRecording() {
+        synchronized (canvas) {
+            readOnly = true;
+        }
+    }
+
+    /**
+     * Stops delivering the room's broadcasts to a client.
+     *
+     * @param client the client leaving the room.
+     */
+    void leave(DrawingPeer client) {
+        members.remove(client);
+    }
+
+    /**
+     * Queues a frame for all members except the sender.
+     * Drawing events are also recorded in the room's canvas, and dropped if they are malformed
+     * or the room {@link #stopRecording() stopped recording}; frames from local clients are
+     * published to the other nodes of the cluster.
+     *
+     * @param frame  the frame to relay.
+     * @param sender the client sending the frame, or {@code null} for server messages and
+     *               events from other nodes.
+     * @return {@code false} if the room was evicted meanwhile and the event must be relayed to
+     * the room looked up again; only possible for events from other nodes, as the sender of a
+     * local one is a member.
+     */
+    boolean relay(Frame frame, DrawingPeer sender) {
+        if (frame.getAction() != null && drawingServer.isPassThrough(frame.getAction())) {
+            // Recorded and relayed together, so a joining client gets it exactly once
+            synchronized (canvas) {
+                if (evicted) {
+                    return false;
+                }
+                if (readOnly) {
+                    return true; // shutting down: what is saved is what was relayed
+                }
+                Frame recorded = canvas.record(frame);
+                if (recorded == null) {
+                    Log.warn("Dropping malformed " + frame.getAction() + " event in room " + name);
+                    return true;
+                }
+                send(recorded, sender);
+            }
+        } else {
+            send(frame, sender);
+        }
+        if (sender != null) {
+            Cluster.publishEvent(this, frame);
+        }
+        return true;
+    }
+
+    private void send(Frame frame, DrawingPeer sender) {
+        for (DrawingPeer client : members) {
+            if (client != sender) {
+                client.send(frame);
+            }
+        }
+    }
+
+    /**
+     * Gets the room's canvas, e.g. to save or restore it.
+     *
+     * @return the canvas.
+     */
+    CanvasState getCanvas() {
+        return canvas;
+    }
+
+    /**
+     * Gets the clients in the room.
+     *
+     * @return a read-only view of the members.
+     */
+    Set<DrawingPeer> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Gets the name of the room.
+     *
+     * @return the name.
+     */
+    String getName() {
+        return name;
+    }
+}
@@ -6,92 +6,257 @@ import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 /**
  * Represents a server that handles client connections for user registration and login.
  * The server validates client requests, stores data in a JSON file, and ensures proper format
  * for usernames, emails, and passwords.
  */
 public class Server {
+    // Compiled once; String.matches would compile them again for every request
+    private static final Pattern USERNAME = Pattern.compile("^[a-zA-Z][a-zA-Z0-9._]{2,14}$");
+    private static final Pattern EMAIL = Pattern.compile("^[a-zA-Z0-9_+&*-]+(?:\\.[a-zA-Z0-9_+&*-]+)*@" +
+            "(?:[a-zA-Z0-9-]+\\.)+[a-zA-Z]{2,7}$");
     private static File jsonDataFile;
+    // Loaded on first use, by whichever of the auth or mux server gets the first request
+    private static UserStore users;
     /**
      * Initializes the server, creates a data file if it doesn't exist, and listens for client connections.
      */
     public static void serverConnect() {
         try {
-            jsonDataFile =  new File("DataFile.json");
+            jsonDataFile =  new File(ServerConfig.USER_DATA_FILE);
 
             if (jsonDataFile.createNewFile()) {
-                System.out.println("file created");
+                Log.info("Created user data file " + jsonDataFile);
             } else {
-                System.out.println("file exist");
+                Log.info("Using user data file " + jsonDataFile);
             }
         } catch (IOException ioException) {
-            System.out.println("Error");
-            ioException.printStackTrace();
+            Log.warn("Could not create user data file " + jsonDataFile, ioException);
         }
-        try (ServerSocket serverSocket = new ServerSocket(8888)) {
-            System.out.println("Server started, waiting for clients...");
+        try {
+            users(); // load the index before the first login
+        } catch (IOException ioException) {
+            Log.warn("Error loading users", ioException);
+        }
+        Executor handlers = ConnectionThreads.newExecutor("auth");
+        try (ServerSocket serverSocket = new ServerSocket(ServerConfig.AUTH_PORT)) {
+            ServerLifecycle.listening(serverSocket);
+            Log.info("Auth Server started on port " + ServerConfig.AUTH_PORT);
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected");
+                Log.info("New client connected!");
 
                 // Handle client in a separate thread
-                new Thread(() -> handleClient(clientSocket, clientSocket)).start();
+                handlers.execute(() -> handleClient(clientSocket, clientSocket, handlers));
             }
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
-            e.printStackTrace();
+            if (ServerLifecycle.isStopping()) {
+                Log.info("Auth Server stopped");
+                return;
+            }
+            Log.warn("Error in auth server", e);
         }
     }
     /**
      * Handles client requests for registration and login.
+     * A connection carries any number of requests, one JSON line each, until the client closes
+     * it or sends nothing for {@link ServerConfig#AUTH_IDLE_TIMEOUT_SECONDS}.
+     * A request with a {@code RequestId} is answered with a JSON line echoing it, e.g.
+     * <pre>{"RequestId":7,"Result":"0","Token":"..."}</pre>
+     * so clients can pipeline requests and match the replies. A request without one gets just
+     * the result code as {@link DataOutputStream#writeUTF(String) UTF}, as the original clients
+     * expect: they compare it with {@code "0"}, so it carries no session token.
+     * <p>
+     * Requests run on the {@link AuthWorkers}, not on the connection's thread. Pipelined
+     * requests are answered as they finish, which may be out of order; at most
+     * {@link ServerConfig#AUTH_MAX_PIPELINED} of them are in flight per connection before the
+     * server stops reading more. A request without an id is answered before the next is read.
+     * The workers only queue the replies to pipelined requests; a writer thread of the
+     * connection sends them, so a client that stops reading never holds up a worker.
+     * </p>
      *
-     * @param clientSocket The socket connected to the client.
-     * @param socket       The socket used for communication.
+     * @param clientSocket  The socket connected to the client.
+     * @param socket        The socket used for communication.
+     * @param writerThreads The executor that runs the connection's writer.
      */
-    public static void handleClient(Socket clientSocket, Socket socket) {
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-            String jsonString = in.readLine();
-            System.out.println("Recieved: " + jsonString);
+    public static void handleClient(Socket clientSocket, Socket socket, Executor writerThreads) {
+        try (
+                Socket connection = socket;
+                FrameReader reader = new FrameReader(socket.getInputStream(), ServerConfig.AUTH_MAX_LINE_BYTES);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()))
+        ) {
+            connection.setSoTimeout(ServerConfig.AUTH_IDLE_TIMEOUT_SECONDS * 1000);
             JSONParser parser = new JSONParser();
-            JSONObject obj = (JSONObject) parser.parse(jsonString);
+            Semaphore inFlight = new Semaphore(ServerConfig.AUTH_MAX_PIPELINED);
+            // A request stays in flight until its reply is written, so this never overflows
+            WriteQueue replies = new WriteQueue(ServerConfig.AUTH_MAX_PIPELINED);
+            writerThreads.execute(() -> writeReplies(connection, out, replies, inFlight));
+            try {
+                while (reader.nextLine()) {
+                    String jsonString = new String(reader.buffer(), reader.lineOffset(), reader.lineLength(), StandardCharsets.UTF_8);
+                    JSONObject obj;
+                    try {
+                        obj = (JSONObject) parser.parse(jsonString);
+                    } catch (ParseException | ClassCastException e) {
+                        Log.info("Invalid auth request, closing the connection");
+                        return;
+                    }
+                    Log.sample(Log.Level.DEBUG, () -> "Auth request " + obj.get("Type") + " for " + obj.get("Username"));
 
-            String type = (String) obj.get("Type");
-            if (type.equals("REGISTER")) {
-                String userName = (String) obj.get("Username");
-                String email = (String) obj.get("Email");
-                String password = (String) obj.get("Password");
-                System.out.println(" type " + type);
-                System.out.println(" user name" + userName);
-                System.out.println("email  " + email);
-                System.out.println("password " + password);
-            }
-            else {
-                String userName = (String) obj.get("Username");
-                String password = (String) obj.get("Password");
-                System.out.println(" type " + type);
-                System.out.println(" user name" + userName);
-                System.out.println("password " + password);
+                    Object requestId = obj.get("RequestId");
+                    inFlight.acquire();
+                    CompletableFuture<String> result = AuthWorkers.submit(obj);
+                    if (requestId == null) {
+                        String reply = resultCode(result.join());
+                        synchronized (out) {
+                            out.writeUTF(reply);
+                            out.flush();
+                        }
+                        inFlight.release();
+                    } else {
+                        result.thenAccept(reply -> replies.offer((byte) 0, Frame.encodeLine(reply(requestId, reply))));
+                    }
+                }
+            } finally {
+                // Let the requests still running answer before the connection closes
+                if (!inFlight.tryAcquire(ServerConfig.AUTH_MAX_PIPELINED, ServerConfig.AUTH_IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    Log.warn("Closing auth connection with requests still running");
+                }
+                replies.close();
             }
+        } catch (SocketTimeoutException e) {
+            Log.info("Closing idle auth connection");
+        } catch (FrameTooLargeException e) {
+            Log.info("Closing auth connection: " + e.getMessage());
+        } catch (IOException ioException) {
+            Log.warn("Auth connection error: " + ioException.getMessage());
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    /**
+     * Writes the replies to pipelined requests as the auth workers queue them, each ending
+     * its request's time in flight. Runs on the connection's writer thread until the
+     * connection is done.
+     *
+     * @param connection the socket, closed if writing fails so the reader stops too.
+     * @param out        the connection's output.
+     * @param replies    the queued replies.
+     * @param inFlight   the connection's permits for requests in flight.
+     */
+    private static void writeReplies(Socket connection, DataOutputStream out, WriteQueue replies, Semaphore inFlight) {
+        try {
+            replies.drainTo(new WriteQueue.Sink() {
+                @Override
+                public void write(byte channel, byte[] reply) throws IOException {
+                    synchronized (out) {
+                        out.write(reply);
+                    }
+                    inFlight.release();
+                }
 
-
-            int result = check(obj);
-            if ((result == 0) && (obj.get("Type").equals("REGISTER"))) {
-                saveDataToFile(obj); // save the data in json file
+                @Override
+                public void flush() throws IOException {
+                    synchronized (out) {
+                        out.flush();
+                    }
+                }
+            });
+        } catch (IOException ioException) {
+            Log.warn("Could not send auth reply: " + ioException.getMessage());
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+                // closing anyway
             }
-            System.out.println("result = " + result);
-            out.writeUTF("" + result);
-            //saveToFile(jsonString); // save data to json file
-        } catch (ParseException parseException) {
-            parseException.printStackTrace();
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
         }
-        catch (IOException ioException) {
-            ioException.printStackTrace();
+    }
+    /**
+     * Strips the session token from a reply of {@link #handleRequest(JSONObject)}.
+     *
+     * @param result the reply.
+     * @return the result code alone.
+     */
+    private static String resultCode(String result) {
+        int space = result.indexOf(' ');
+        return space < 0 ? result : result.substring(0, space);
+    }
+    /**
+     * Builds the JSON reply to a request that carries a {@code RequestId}.
+     *
+     * @param requestId the id the client sent.
+     * @param result    the reply of {@link #handleRequest(JSONObject)}.
+     * @return the reply, with the session token of a successful LOGIN in {@code Token}.
+     */
+    static JSONObject reply(Object requestId, String result) {
+        JSONObject reply = new JSONObject();
+        reply.put("RequestId", requestId);
+        int space = result.indexOf(' ');
+        reply.put("Result", resultCode(result));
+        if (space >= 0) {
+            reply.put("Token", result.substring(space + 1));
         }
-
+        return reply;
+    }
+    /**
+     * Checks a REGISTER or LOGIN request and stores the user of a valid registration.
+     * Shared by the auth socket and the multiplexed connection.
+     *
+     * A successful LOGIN is answered with {@code "0 <token>"}, where the {@link SessionTokens session token}
+     * lets the drawing and chat connections of the user skip logging in again.
+     *
+     * @param obj the request.
+     * @return the result code as text, {@code "0"} on success.
+     */
+    static String handleRequest(JSONObject obj) {
+        int result = check(obj);
+        if ((result == 0) && (obj.get("Type").equals("REGISTER"))) {
+            try {
+                result = register(obj); // the check above may have raced with another registration
+            } catch (IOException ioException) {
+                Log.warn("Could not register " + obj.get("Username"), ioException);
+                return "Error";
+            }
+        }
+        int code = result;
+        Log.sample(Log.Level.DEBUG, () -> "result = " + code);
+        if ((result == 0) && (obj.get("Type").equals("LOGIN"))) {
+            return result + " " + SessionTokens.issue(obj.get("Username").toString());
+        }
+        return "" + result;
+    }
+    /**
+     * Registers a user whose request passed {@link #check(JSONObject)}.
+     *
+     * @param jsonObject The REGISTER request.
+     * @return {@code 0} if registered, or {@code 4} if the username is taken.
+     * @throws IOException if the data file cannot be written.
+     */
+    static int register(JSONObject jsonObject) throws IOException {
+        return users().register(withHashedPassword(jsonObject)) ? 0 : 4;
+    }
+    /**
+     * Copies a REGISTER request with its password replaced by the {@link PasswordHasher} hash,
+     * which is what the data file keeps.
+     *
+     * @param jsonObject The REGISTER request.
+     * @return the record to store.
+     */
+    static JSONObject withHashedPassword(JSONObject jsonObject) {
+        JSONObject stored = new JSONObject(jsonObject);
+        stored.remove("RequestId");
+        stored.put("Password", PasswordHasher.hash(jsonObject.get("Password").toString()));
+        return stored;
     }
     /**
      * Saves a JSON object to the data file.
@@ -100,14 +265,26 @@ public class Server {
      */
     public static void saveDataToFile(JSONObject jsonObject) {
         try {
-            FileWriter fileWriter = new FileWriter("DataFile.json", true);
-            fileWriter.write(jsonObject.toJSONString());
-            fileWriter.write(System.lineSeparator());
-            fileWriter.close();
+            if (!users().register(withHashedPassword(jsonObject))) {
+                Log.info("Username already registered: " + jsonObject.get("Username"));
+            }
         } catch (IOException ioException)  {
-            ioException.printStackTrace();
+            Log.warn("Could not save " + jsonObject.get("Username"), ioException);
         }
     }
+    /**
+     * Gets the registered users, loading the data file on first use.
+     *
+     * @return the user store.
+     * @throws IOException if the data file cannot be read.
+     */
+    static synchronized UserStore users() throws IOException {
+        if (users == null) {
+            users = new UserStore(new File(ServerConfig.USER_DATA_FILE));
+            Log.info(users.size() + " users loaded");
+        }
+        return users;
+    }
     /**
      * Validates a JSON object based on its type (REGISTER or LOGIN).
      *
@@ -117,6 +294,9 @@ public class Server {
     public static int check(JSONObject jsonObject) {
         if (((String) jsonObject.get("Type")).equals("REGISTER")) {
             int tmp = checkUserName((String) jsonObject.get("Username"));
+            if (tmp == 0) {
+                tmp = checkUserNameFree((String) jsonObject.get("Username"));
+            }
             if (tmp == 0) {
                 int tmp1 = checkEmail((String) jsonObject.get("Email"));
                 if (tmp1 == 0) {
@@ -137,40 +317,44 @@ public class Server {
         }
     }
     /**
-     * Reads data from the JSON file and validates the login credentials.
+     * Validates the login credentials against the registered users.
      *
      * @param jsonObject The JSON object containing the login credentials.
      * @return {@code 0} if login is successful, or {@code 1} otherwise.
      */
     public static int readData(JSONObject jsonObject) {
-        JSONParser parser = new JSONParser();
         String username = jsonObject.get("Username").toString();
         String password = jsonObject.get("Password").toString();
 
         try {
-            BufferedReader reader = new BufferedReader(new FileReader("DataFile.json"));
-            String jsonString = "";
-            while ((jsonString = reader.readLine()) != null) {
-                JSONObject jsonObject1 = (JSONObject) parser.parse(jsonString);
-                if (jsonObject1.get("Username").equals(username)) {
-                    if (jsonObject1.get("Password").equals(password)) {
-                        return 0;
-                    }
-                }
-            }
-            reader.close();
-        } catch (FileNotFoundException fileNotFoundException) {
-            fileNotFoundException.printStackTrace();
-        } catch (ParseException parseException) {
-            parseException.printStackTrace();
+            return users().login(username, password);
         } catch (IOException ioException) {
-            ioException.printStackTrace();
+            Log.warn("Could not read users", ioException);
         }
         return 1;
     }
+    /**
+     * Checks that a username is not registered yet.
+     *
+     * @param userName The username to check.
+     * @return {@code 0} if the username is free, or {@code 4} if it is taken.
+     */
+    public static int checkUserNameFree(String userName) {
+        try {
+            return users().get(userName) == null ? 0 : 4;
+        } catch (IOException ioException) {
+            Log.warn("Could not read users", ioException);
+            return 0; // registering reports the failure
+        }
+    }
+    /**
+     * Validates the format of a username.
+     *
+     * @param str The username to validate.
+     * @return {@code 0} if the username is valid, or {@code 1} otherwise.
+     */
     public static int checkUserName(String str) {
-        String usernameRegex = "^[a-zA-Z][a-zA-Z0-9._]{2,14}$";
-        return str.matches(usernameRegex) ? 0 : 1;
+        return USERNAME.matcher(str).matches() ? 0 : 1;
     }
     /**
      * Validates the format of an email address.
@@ -179,9 +363,7 @@ public class Server {
      * @return {@code 0} if the email is valid, or {@code 2} otherwise.
      */
     public static int checkEmail(String email) {
-        String emailRegex = "^[a-zA-Z0-9_+&*-]+(?:\\.[a-zA-Z0-9_+&*-]+)*@" +
-                "(?:[a-zA-Z0-9-]+\\.)+[a-zA-Z]{2,7}$";
-        return email.matches(emailRegex) ? 0 : 2;
+        return EMAIL.matcher(email).matches() ? 0 : 2;
     }
     /**
      * Validates the format of a password.
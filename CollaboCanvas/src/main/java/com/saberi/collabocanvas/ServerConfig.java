@@ -0,0 +1,170 @@
+package com.saberi.collabocanvas;
+
+/**
+ * Central place for the tunable settings of the server processes.
+ * Every value can be overridden at startup with a {@code -D} system property,
+ * e.g. {@code -Dcollabocanvas.drawing.engine=blocking}.
+ */
+final class ServerConfig {
+    /** Port of the auth server, which answers REGISTER and LOGIN requests. */
+    static final int AUTH_PORT = Integer.getInteger("collabocanvas.auth.port", 8888);
+
+    /** Seconds an auth connection may stay without a request before the server closes it. */
+    static final int AUTH_IDLE_TIMEOUT_SECONDS = Integer.getInteger("collabocanvas.auth.idleTimeoutSeconds", 60);
+
+    /** Largest single auth request (in bytes); a client sending a longer one is disconnected. */
+    static final int AUTH_MAX_LINE_BYTES = Integer.getInteger("collabocanvas.auth.maxLineBytes", 16 * 1024);
+
+    /** File the auth server keeps registered users in, one REGISTER record per line. */
+    static final String USER_DATA_FILE = System.getProperty("collabocanvas.auth.dataFile", "DataFile.json");
+
+    /** Number of threads that check credentials; password hashing is CPU heavy. */
+    static final int AUTH_WORKERS = Integer.getInteger("collabocanvas.auth.workers",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /** Number of auth requests that may wait for a worker before new ones are turned away. */
+    static final int AUTH_QUEUE = Integer.getInteger("collabocanvas.auth.queue", 256);
+
+    /** Number of pipelined requests one auth connection may have in flight. */
+    static final int AUTH_MAX_PIPELINED = Integer.getInteger("collabocanvas.auth.maxPipelined", 32);
+
+    /** PBKDF2 iterations for newly stored passwords. */
+    static final int PASSWORD_ITERATIONS = Integer.getInteger("collabocanvas.auth.passwordIterations", 100_000);
+
+    /** Port of the multiplexed server, which carries auth, drawing and chat over one connection. */
+    static final int MUX_PORT = Integer.getInteger("collabocanvas.mux.port", 7000);
+
+    /** Port of the drawing server. */
+    static final int DRAWING_PORT = Integer.getInteger("collabocanvas.drawing.port", 7777);
+
+    /**
+     * Engine used by the drawing server: {@code "nio"} for the selector based event loop,
+     * {@code "blocking"} for one handler per connection.
+     */
+    static final String DRAWING_ENGINE = System.getProperty("collabocanvas.drawing.engine", "nio");
+
+    /** Number of selector threads used by the NIO drawing engine. */
+    static final int DRAWING_IO_THREADS = Integer.getInteger("collabocanvas.drawing.ioThreads",
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+    /** Largest single line (in bytes) the NIO engine will buffer for one connection. */
+    static final int DRAWING_MAX_LINE_BYTES = Integer.getInteger("collabocanvas.drawing.maxLineBytes", 4 * 1024 * 1024);
+
+    /** Largest single chat message (in bytes); a client sending a longer one is disconnected. */
+    static final int CHAT_MAX_LINE_BYTES = Integer.getInteger("collabocanvas.chat.maxLineBytes", 64 * 1024);
+
+    /**
+     * Threads used for blocking connection handlers: {@code "platform"} or {@code "virtual"}
+     * (virtual threads need a Java 21 runtime).
+     */
+    static final String THREAD_MODE = System.getProperty("collabocanvas.threads", "platform");
+
+    /** Maximum number of frames queued for one drawing client. */
+    static final int OUTBOUND_CAPACITY = Integer.getInteger("collabocanvas.outbound.capacity", 1024);
+
+    /** What happens when a drawing client's queue is full: DROP_OLDEST, COALESCE or DISCONNECT. */
+    static final OutboundQueue.OverflowPolicy OUTBOUND_OVERFLOW = OutboundQueue.OverflowPolicy.valueOf(
+            System.getProperty("collabocanvas.outbound.overflow", "DROP_OLDEST"));
+
+    /** Queued frames after which a drawing client counts as lagging and its pen input is merged. */
+    static final int LAG_THRESHOLD = Integer.getInteger("collabocanvas.outbound.lagThreshold", 64);
+
+    /** How far (in pixels) merged pen input may deviate from the original points. */
+    static final double LAG_SIMPLIFY_PIXELS = Double.parseDouble(System.getProperty("collabocanvas.outbound.simplifyPixels", "0.5"));
+
+    /** Relay pass-through drawing events as raw bytes instead of parsing and re-serializing them. */
+    static final boolean RELAY_RAW = Boolean.parseBoolean(System.getProperty("collabocanvas.relay.raw", "true"));
+
+    /** Whether the drawing server accepts clients that ask for the binary protocol. */
+    static final boolean BINARY_PROTOCOL = Boolean.parseBoolean(System.getProperty("collabocanvas.protocol.binary", "true"));
+
+    /**
+     * Messages per second one connection may send, by kind; 0 turns the limit off.
+     * Each limit allows bursts of {@code ...burst} messages, set with the same property name
+     * plus {@code .burst}.
+     */
+    static final int RATE_DRAW = Integer.getInteger("collabocanvas.rate.draw", 500);
+    static final int RATE_DRAW_BURST = Integer.getInteger("collabocanvas.rate.draw.burst", 1000);
+    static final int RATE_SHAPE = Integer.getInteger("collabocanvas.rate.shape", 50);
+    static final int RATE_SHAPE_BURST = Integer.getInteger("collabocanvas.rate.shape.burst", 100);
+    static final int RATE_SAVE = Integer.getInteger("collabocanvas.rate.save", 1);
+    static final int RATE_SAVE_BURST = Integer.getInteger("collabocanvas.rate.save.burst", 5);
+    static final int RATE_CHAT = Integer.getInteger("collabocanvas.rate.chat", 10);
+    static final int RATE_CHAT_BURST = Integer.getInteger("collabocanvas.rate.chat.burst", 20);
+
+    /** Seconds between pings to drawing and chat clients; 0 turns heartbeats off. */
+    static final int HEARTBEAT_SECONDS = Integer.getInteger("collabocanvas.heartbeat.intervalSeconds", 15);
+
+    /** Seconds without hearing from a client that answers pings after which it is disconnected. */
+    static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("collabocanvas.heartbeat.idleTimeoutSeconds", 45);
+
+    /** Round-trip time (in milliseconds) from which a drawing client's pen input is merged sooner. */
+    static final int SLOW_RTT_MILLIS = Integer.getInteger("collabocanvas.heartbeat.slowRttMillis", 250);
+
+    /** Number of recent drawing events kept so reconnecting clients can catch up without a snapshot. */
+    static final int CANVAS_LOG_SIZE = Integer.getInteger("collabocanvas.canvas.logSize", 10000);
+
+    /** Approximate size (in bytes) a room's canvas may reach; beyond it the oldest drawing is dropped. */
+    static final int CANVAS_MAX_BYTES = Integer.getInteger("collabocanvas.canvas.maxBytes", 64 * 1024 * 1024);
+
+    /**
+     * Largest snapshot message (in bytes); bigger canvases are sent to joining clients in
+     * several parts. Must stay well below {@link #DRAWING_MAX_LINE_BYTES}.
+     */
+    static final int SNAPSHOT_CHUNK_BYTES = Integer.getInteger("collabocanvas.canvas.snapshotChunkBytes", 256 * 1024);
+
+    /** Directory where room canvases are kept across restarts; empty to keep them in memory only. */
+    static final String CANVAS_DIR = System.getProperty("collabocanvas.canvas.dir", "canvas-state");
+
+    /**
+     * Rooms kept in memory at once; a client asking for a new room beyond it is disconnected.
+     * Empty rooms are saved to {@link #CANVAS_DIR} and evicted, so only boards kept in memory
+     * only, or in use, count.
+     */
+    static final int MAX_ROOMS = Integer.getInteger("collabocanvas.canvas.maxRooms", 1000);
+
+    /** Longest time (in milliseconds) a shutdown waits for queued frames and saves. */
+    static final int SHUTDOWN_DRAIN_MILLIS = Integer.getInteger("collabocanvas.shutdown.drainMillis", 5000);
+
+    /** Seconds a session token issued on login stays valid. */
+    static final int SESSION_TTL_SECONDS = Integer.getInteger("collabocanvas.session.ttlSeconds", 24 * 60 * 60);
+
+    /** Secret that signs session tokens; if empty, the key in {@link #SESSION_KEY_FILE} is used. */
+    static final String SESSION_SECRET = System.getProperty("collabocanvas.session.secret", "");
+
+    /** File holding the generated session key, so tokens stay valid across restarts. */
+    static final String SESSION_KEY_FILE = System.getProperty("collabocanvas.session.keyFile", "session.key");
+
+    /**
+     * Whether drawing and chat connections must present a session token.
+     * When off, clients that send none are trusted with the username they give, as before;
+     * a token that is present is always checked.
+     */
+    static final boolean SESSION_REQUIRED = Boolean.getBoolean("collabocanvas.session.required");
+
+    /**
+     * This node's id on the cluster bus. Unless set, a random id is kept in {@link #CANVAS_DIR},
+     * so clients reconnecting after a restart can resume the event numbering of the saved
+     * canvases; nodes must then not share that directory.
+     */
+    static final String NODE_ID = System.getProperty("collabocanvas.node.id") != null
+            ? System.getProperty("collabocanvas.node.id") : CanvasStore.nodeId();
+
+    /** Bus that links drawing server nodes: {@code none}, {@code inprocess} or {@code tcp}. */
+    static final String CLUSTER_BUS = System.getProperty("collabocanvas.cluster.bus", "none");
+
+    /** Address of the broker for the {@code tcp} bus. */
+    static final String CLUSTER_BROKER = System.getProperty("collabocanvas.cluster.broker", "localhost:7790");
+
+    /** If set, this node also runs the {@code tcp} bus broker on that port. */
+    static final int CLUSTER_BROKER_PORT = Integer.getInteger("collabocanvas.cluster.brokerPort", 0);
+
+    /** Maximum number of messages queued for the bus before new ones are dropped. */
+    static final int CLUSTER_OUTBOX = Integer.getInteger("collabocanvas.cluster.outbox", 16 * 1024);
+
+    /** How often each node publishes its online users. */
+    static final int CLUSTER_PRESENCE_SECONDS = Integer.getInteger("collabocanvas.cluster.presenceSeconds", 5);
+
+    private ServerConfig() {
+    }
+}
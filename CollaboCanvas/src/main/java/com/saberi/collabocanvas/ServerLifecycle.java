@@ -0,0 +1,117 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stops the servers of this process cleanly, on {@link #stop()} or when the JVM is asked to
+ * exit (e.g. SIGTERM during a rolling restart):
+ * <ol>
+ *     <li>closes every listening socket, so no new connections are accepted;</li>
+ *     <li>tells drawing and chat clients
+ *     {@code {"action":"control","type":"shutdown","reconnectAfterMs":1000}};</li>
+ *     <li>stops recording drawing events, so the canvases no longer change while they are
+ *     saved; events clients send after the notice are dropped;</li>
+ *     <li>waits until every drawing client's queue is written, up to
+ *     {@link ServerConfig#SHUTDOWN_DRAIN_MILLIS};</li>
+ *     <li>finishes the canvas saves already requested and writes every room's canvas with
+ *     {@link CanvasStore}, so the next start picks up where this one stopped;</li>
+ *     <li>leaves the cluster and flushes the log.</li>
+ * </ol>
+ */
+final class ServerLifecycle {
+    private static final long RECONNECT_AFTER_MILLIS = 1000;
+
+    private static final List<Closeable> listeners = new CopyOnWriteArrayList<>();
+    private static final AtomicBoolean hookInstalled = new AtomicBoolean();
+    private static volatile boolean stopping;
+    private static boolean stopped; // guarded by the class
+
+    private ServerLifecycle() {
+    }
+
+    /**
+     * Registers a server's listening socket, and makes sure the shutdown hook is installed.
+     *
+     * @param listener the server socket or channel; closed when the server stops.
+     */
+    static void listening(Closeable listener) {
+        if (hookInstalled.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(ServerLifecycle::shutdown, "shutdown"));
+        }
+        listeners.add(listener);
+        if (stopping) {
+            closeQuietly(listener);
+        }
+    }
+
+    /**
+     * Checks whether the servers are shutting down. Accept loops use it to tell a closed
+     * listener from a failure.
+     *
+     * @return {@code true} once shutdown started.
+     */
+    static boolean isStopping() {
+        return stopping;
+    }
+
+    /**
+     * Shuts the servers down and exits the JVM.
+     */
+    static void stop() {
+        shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * Shuts the servers down, once; later calls return immediately.
+     */
+    static synchronized void shutdown() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        stopping = true;
+        long deadline = System.currentTimeMillis() + ServerConfig.SHUTDOWN_DRAIN_MILLIS;
+        Log.info("Shutting down");
+        for (Closeable listener : listeners) {
+            closeQuietly(listener);
+        }
+
+        JSONObject notice = new JSONObject();
+        notice.put("action", "control");
+        notice.put("type", "shutdown");
+        notice.put("reconnectAfterMs", RECONNECT_AFTER_MILLIS);
+        drawingServer.sendToAll(notice);
+        MessagingServer.sendToAllClients(notice, null);
+        drawingServer.stopRecording();
+
+        try {
+            while (!drawingServer.isDrained() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            if (!drawingServer.finishSaves(Math.max(0, deadline - System.currentTimeMillis()))) {
+                Log.warn("Canvas saves still running at the shutdown deadline");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drawingServer.saveRooms();
+        Cluster.stop();
+        Log.info("Shutdown complete");
+        Log.flush(1000);
+    }
+
+    private static void closeQuietly(Closeable listener) {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            Log.warn("Error closing listener", e);
+        }
+    }
+}
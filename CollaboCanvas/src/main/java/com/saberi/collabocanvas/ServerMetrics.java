@@ -0,0 +1,76 @@
+package com.saberi.collabocanvas;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the drawing server's hot paths.
+ * With {@code -Dcollabocanvas.metrics.cpu=true} the thread CPU time spent handling each
+ * incoming message is recorded as well, so the raw relay path and the full parse path
+ * can be compared (toggle the relay with {@code -Dcollabocanvas.relay.raw=false}).
+ * Messages rejected by the per-connection rate limits are counted by kind.
+ * A summary, followed by the auth load and each drawing client's lag, is printed every
+ * {@code collabocanvas.metrics.intervalSeconds} seconds when set.
+ */
+final class ServerMetrics {
+    static final boolean CPU_TIMING = Boolean.getBoolean("collabocanvas.metrics.cpu");
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    static final LongAdder relayedRaw = new LongAdder();
+    static final LongAdder relayedRawCpuNanos = new LongAdder();
+    static final LongAdder parsed = new LongAdder();
+    static final LongAdder parsedCpuNanos = new LongAdder();
+    static final LongAdder coalesced = new LongAdder();
+
+    static {
+        int interval = Integer.getInteger("collabocanvas.metrics.intervalSeconds", 0);
+        if (interval > 0) {
+            Thread reporter = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(interval * 1000L);
+                        Log.info(report());
+                        Log.info(AuthWorkers.report());
+                        Log.info(drawingServer.lagReport());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "metrics-reporter");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+    }
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * Gets the CPU time of the current thread if timing is enabled.
+     *
+     * @return the CPU time in nanoseconds, or {@code 0} when timing is off.
+     */
+    static long cpuTime() {
+        return CPU_TIMING ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Builds a one-line summary of all counters.
+     *
+     * @return the summary.
+     */
+    static String report() {
+        return "metrics: relayedRaw=" + relayedRaw.sum()
+                + " rawCpuNsPerMsg=" + perMessage(relayedRawCpuNanos.sum(), relayedRaw.sum())
+                + " parsed=" + parsed.sum()
+                + " parsedCpuNsPerMsg=" + perMessage(parsedCpuNanos.sum(), parsed.sum())
+                + " coalesced=" + coalesced.sum()
+                + " rateLimited=" + RateLimiter.report()
+                + " logDropped=" + Log.getDropped();
+    }
+
+    private static long perMessage(long nanos, long messages) {
+        return messages == 0 ? 0 : nanos / messages;
+    }
+}
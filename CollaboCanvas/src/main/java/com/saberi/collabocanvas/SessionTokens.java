@@ -0,0 +1,145 @@
+package com.saberi.collabocanvas;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+
+/**
+ * Signed, expiring session tokens, issued on a successful LOGIN and presented by the drawing
+ * and chat connections instead of a bare username. A token is
+ * <pre>base64url(username) "." expiry millis "." base64url(HMAC-SHA256 of the first two parts)</pre>
+ * so checking one is a MAC over a few bytes: no file access and no user lookup.
+ * <p>
+ * The key comes from {@link ServerConfig#SESSION_SECRET}, or else from
+ * {@link ServerConfig#SESSION_KEY_FILE}, which is created with a random key on first use.
+ * Tokens therefore survive a restart; nodes of a cluster must share the key.
+ * </p>
+ */
+final class SessionTokens {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    // Declared before the key, which is loaded while the class initializes
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private static final SecretKeySpec key = new SecretKeySpec(loadKey(), ALGORITHM);
+    // Mac instances are not thread safe
+    private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " unavailable", e);
+        }
+    });
+
+    private SessionTokens() {
+    }
+
+    /**
+     * Issues a token for a user who just logged in.
+     *
+     * @param userName the username.
+     * @return the token, valid for {@link ServerConfig#SESSION_TTL_SECONDS}.
+     */
+    static String issue(String userName) {
+        long expiry = System.currentTimeMillis() + ServerConfig.SESSION_TTL_SECONDS * 1000L;
+        String body = ENCODER.encodeToString(userName.getBytes(StandardCharsets.UTF_8)) + "." + expiry;
+        return body + "." + ENCODER.encodeToString(sign(body));
+    }
+
+    /**
+     * Checks a token.
+     *
+     * @param token the token a client presented.
+     * @return the username it was issued to, or {@code null} if it is malformed, forged or expired.
+     */
+    static String verify(String token) {
+        int firstDot = token.indexOf('.');
+        int lastDot = token.lastIndexOf('.');
+        if (firstDot <= 0 || lastDot == firstDot) {
+            return null;
+        }
+        String body = token.substring(0, lastDot);
+        try {
+            if (!MessageDigest.isEqual(sign(body), DECODER.decode(token.substring(lastDot + 1)))) {
+                return null;
+            }
+            if (Long.parseLong(token.substring(firstDot + 1, lastDot)) < System.currentTimeMillis()) {
+                return null;
+            }
+            return new String(DECODER.decode(token.substring(0, firstDot)), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) { // bad base64 or expiry
+            return null;
+        }
+    }
+
+    /**
+     * Makes the key file readable and writable by its owner only: anyone who can read the key
+     * can forge a session for any user.
+     */
+    private static void restrictToOwner(Path path) throws IOException {
+        if (isPosix(path)) {
+            if (!Files.getPosixFilePermissions(path).equals(OWNER_ONLY)) {
+                Files.setPosixFilePermissions(path, OWNER_ONLY);
+                Log.info("Restricted session key " + path + " to its owner");
+            }
+        } else {
+            File file = path.toFile();
+            boolean restricted = file.setReadable(false, false) && file.setReadable(true, true)
+                    && file.setWritable(false, false) && file.setWritable(true, true);
+            if (!restricted) {
+                Log.warn("Could not restrict session key " + path + " to its owner");
+            }
+        }
+    }
+
+    private static boolean isPosix(Path path) {
+        return path.toAbsolutePath().getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static byte[] sign(String body) {
+        return macs.get().doFinal(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] loadKey() {
+        if (!ServerConfig.SESSION_SECRET.isEmpty()) {
+            return ServerConfig.SESSION_SECRET.getBytes(StandardCharsets.UTF_8);
+        }
+        File file = new File(ServerConfig.SESSION_KEY_FILE);
+        try {
+            if (file.isFile() && file.length() > 0) {
+                restrictToOwner(file.toPath());
+                return Files.readAllBytes(file.toPath());
+            }
+            byte[] generated = new byte[32];
+            new SecureRandom().nextBytes(generated);
+            if (!file.exists() && isPosix(file.toPath())) {
+                // Created unreadable for others before the key is in it
+                Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            }
+            Files.write(file.toPath(), generated);
+            restrictToOwner(file.toPath());
+            Log.info("Created session key " + file);
+            return generated;
+        } catch (IOException e) {
+            // Still works, but tokens stop being valid when this process exits
+            Log.warn("Could not keep the session key in " + file + ", using a temporary one", e);
+            byte[] generated = new byte[32];
+            new SecureRandom().nextBytes(generated);
+            return generated;
+        }
+    }
+}
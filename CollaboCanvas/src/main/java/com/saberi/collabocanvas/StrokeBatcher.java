@@ -0,0 +1,174 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects pen points into stroke segments instead of sending one message per mouse event.
+ * A segment is sent when the time window has passed since its first point, when it holds
+ * the maximum number of points, or when the stroke ends. It looks like
+ * <pre>{"action":"stroke","strokeId":"...","color":"0x000000ff","size":5.0,"points":[x0,y0,x1,y1,...]}</pre>
+ * Every segment after the first starts with the last point of the previous one, so each
+ * segment can be drawn on its own and the segments still join into one continuous stroke.
+ */
+class StrokeBatcher {
+    /** Default time window: about one frame at 60 Hz. */
+    static final long DEFAULT_WINDOW_MILLIS = 16;
+    /** Default maximum number of points in one segment. */
+    static final int DEFAULT_MAX_POINTS = 64;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stroke-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Consumer<JSONObject> sink;
+    private final long windowMillis;
+    private final int maxPoints;
+    private final Object sendLock = new Object(); // keeps segments in order; taken before the batcher's lock
+
+    private String strokeId;
+    private String color;
+    private double size;
+    private JSONArray points = new JSONArray();
+    private int newPoints; // points added since the last segment was sent
+    private double lastX, lastY;
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * Constructs a batcher with the default window and point limit.
+     *
+     * @param sink receives each finished segment.
+     */
+    StrokeBatcher(Consumer<JSONObject> sink) {
+        this(sink, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_POINTS);
+    }
+
+    /**
+     * Constructs a new stroke batcher.
+     *
+     * @param sink         receives each finished segment.
+     * @param windowMillis the longest time a point waits before it is sent.
+     * @param maxPoints    the maximum number of points in one segment.
+     */
+    StrokeBatcher(Consumer<JSONObject> sink, long windowMillis, int maxPoints) {
+        this.sink = sink;
+        this.windowMillis = windowMillis;
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * Starts a new stroke, sending whatever is left of the previous one.
+     *
+     * @param color the pen color.
+     * @param size  the pen size.
+     * @param x     the x-coordinate of the first point.
+     * @param y     the y-coordinate of the first point.
+     */
+    void beginStroke(String color, double size, double x, double y) {
+        endStroke();
+        synchronized (this) {
+            this.strokeId = UUID.randomUUID().toString();
+            this.color = color;
+            this.size = size;
+        }
+        addPoint(x, y);
+    }
+
+    /**
+     * Adds a point to the current stroke.
+     *
+     * @param x the x-coordinate of the point.
+     * @param y the y-coordinate of the point.
+     */
+    void addPoint(double x, double y) {
+        boolean full;
+        synchronized (this) {
+            if (strokeId == null) {
+                return; // no stroke in progress
+            }
+            points.add(x);
+            points.add(y);
+            newPoints++;
+            lastX = x;
+            lastY = y;
+            full = points.size() / 2 >= maxPoints;
+            if (!full && scheduledFlush == null) {
+                scheduledFlush = timer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Ends the current stroke and sends its last segment.
+     */
+    void endStroke() {
+        synchronized (sendLock) {
+            JSONObject segment;
+            synchronized (this) {
+                segment = takeSegment();
+                strokeId = null;
+                points = new JSONArray();
+            }
+            if (segment != null) {
+                sink.accept(segment);
+            }
+        }
+    }
+
+    /**
+     * Sends the pending points as one segment.
+     * The sink is called without holding the batcher's lock, so points can still be added
+     * while a slow connection is written to.
+     */
+    void flush() {
+        synchronized (sendLock) {
+            JSONObject segment;
+            synchronized (this) {
+                segment = takeSegment();
+            }
+            if (segment != null) {
+                sink.accept(segment);
+            }
+        }
+    }
+
+    /**
+     * Takes the pending points as one segment. Called with the batcher's lock held.
+     *
+     * @return the segment, or {@code null} if there are no new points.
+     */
+    private JSONObject takeSegment() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (strokeId == null || newPoints == 0) {
+            return null;
+        }
+        JSONObject segment = new JSONObject();
+        segment.put("action", "stroke");
+        segment.put("strokeId", strokeId);
+        segment.put("color", color);
+        segment.put("size", size);
+        segment.put("points", points);
+
+        // The next segment continues from where this one ended
+        points = new JSONArray();
+        points.add(lastX);
+        points.add(lastY);
+        newPoints = 0;
+        return segment;
+    }
+}
@@ -0,0 +1,157 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Merges queued pen input for a client that is falling behind.
+ * Consecutive segments of one stroke, from the same sender, become one {@code stroke} segment,
+ * and points that do not change the visible line (within {@link ServerConfig#LAG_SIMPLIFY_PIXELS})
+ * are dropped with the Ramer-Douglas-Peucker algorithm. The first and last point are always kept.
+ * Loose {@code draw} points carry no stroke id, so nothing tells where one line ends and the
+ * next begins; they are never merged.
+ * A merge is started on a queued frame, appended to while the client lags, and finished
+ * when the frame is dequeued, so the points are encoded and simplified only once.
+ * Only segments that passed {@link CanvasState#isStroke} are merged, so the points are all numbers.
+ */
+final class StrokeMerger {
+    private StrokeMerger() {
+    }
+
+    /**
+     * Starts merging into a queued frame.
+     *
+     * @param queued the frame to merge into.
+     * @return the frame as a {@code stroke} message to append to, or {@code null} if it is not a stroke segment.
+     */
+    static JSONObject start(Frame queued) {
+        JSONObject message = segmentOf(queued);
+        if (message == null) {
+            return null;
+        }
+        JSONObject merged = new JSONObject();
+        merged.put("action", "stroke");
+        merged.put("strokeId", message.get("strokeId"));
+        merged.put("color", message.get("color"));
+        merged.put("size", message.get("size"));
+        JSONArray points = new JSONArray();
+        points.addAll((JSONArray) message.get("points"));
+        merged.put("points", points);
+        if (message.get("seq") != null) {
+            merged.put("seq", message.get("seq"));
+        }
+        return merged;
+    }
+
+    /**
+     * Appends an incoming frame to a merge if it continues the same stroke.
+     *
+     * @param merged   the message returned by {@link #start}.
+     * @param incoming the frame being queued, from the same sender.
+     * @return {@code true} if the frame was appended.
+     */
+    static boolean append(JSONObject merged, Frame incoming) {
+        JSONObject message = segmentOf(incoming);
+        if (message == null || !merged.get("strokeId").equals(message.get("strokeId"))) {
+            return false;
+        }
+        JSONArray more = (JSONArray) message.get("points");
+        JSONArray points = (JSONArray) merged.get("points");
+        int skip = more.size() >= 2 && points.size() >= 2
+                && points.get(points.size() - 2).equals(more.get(0))
+                && points.get(points.size() - 1).equals(more.get(1)) ? 2 : 0; // repeated joint
+        points.addAll(more.subList(skip, more.size()));
+        if (message.get("seq") != null) {
+            merged.put("seq", message.get("seq"));
+        }
+        return true;
+    }
+
+    /**
+     * Finishes a merge when the frame is about to be written. Simplifying once, over all
+     * merged points, keeps every dropped point within the tolerance of the line sent.
+     *
+     * @param merged the message returned by {@link #start}.
+     * @param sender the client the pen input came from.
+     * @return the frame to write.
+     */
+    static Frame finish(JSONObject merged, DrawingPeer sender) {
+        merged.put("points", simplify((JSONArray) merged.get("points"), ServerConfig.LAG_SIMPLIFY_PIXELS));
+        return new Frame(merged, sender);
+    }
+
+    /**
+     * Gets a frame's message if it is a well-formed stroke segment sent by a local client.
+     * Events from other nodes have no sender, so there is no telling whose stroke they continue.
+     */
+    private static JSONObject segmentOf(Frame frame) {
+        if (frame.getSender() == null || !"stroke".equals(frame.getAction())) {
+            return null;
+        }
+        JSONObject message = frame.getMessage();
+        return CanvasState.isStroke(message) ? message : null;
+    }
+
+    /**
+     * Drops points that lie within a tolerance of the line through their neighbours.
+     *
+     * @param points    flat list of x, y pairs.
+     * @param tolerance the largest distance, in pixels, a dropped point may have from the result.
+     * @return the simplified flat list.
+     */
+    static JSONArray simplify(JSONArray points, double tolerance) {
+        int count = points.size() / 2;
+        if (count <= 2 || tolerance <= 0) {
+            return points;
+        }
+        double[] xs = new double[count];
+        double[] ys = new double[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = ((Number) points.get(2 * i)).doubleValue();
+            ys[i] = ((Number) points.get(2 * i + 1)).doubleValue();
+        }
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+        int[] stack = new int[2 * count];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            int farthest = -1;
+            double farthestDistance = tolerance;
+            for (int i = first + 1; i < last; i++) {
+                double distance = distanceToSegment(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+                if (distance > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+        JSONArray simplified = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                simplified.add(points.get(2 * i));
+                simplified.add(points.get(2 * i + 1));
+            }
+        }
+        return simplified;
+    }
+
+    private static double distanceToSegment(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+        return Math.hypot(px - (ax + t * dx), py - (ay + t * dy));
+    }
+}
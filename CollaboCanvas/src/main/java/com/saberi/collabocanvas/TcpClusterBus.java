@@ -0,0 +1,218 @@
+package com.saberi.collabocanvas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A {@link ClusterBus} over TCP: every node connects to one {@link Broker}, which forwards
+ * each message to all other nodes. Messages are queued and written on a bus thread, so
+ * publishing never waits for the network; the connection is re-established when it drops.
+ */
+final class TcpClusterBus implements ClusterBus {
+    private final String host;
+    private final int port;
+    private final BlockingQueue<Message> outbox = new ArrayBlockingQueue<>(ServerConfig.CLUSTER_OUTBOX);
+    private volatile Consumer<Message> listener;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a bus that connects to a broker.
+     *
+     * @param host the broker's host.
+     * @param port the broker's port.
+     */
+    TcpClusterBus(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void start(Consumer<Message> listener) {
+        this.listener = listener;
+        Thread writer = new Thread(this::run, "cluster-bus");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void publish(Message message) {
+        if (!outbox.offer(message)) {
+            Log.warn("Cluster bus outbox full, dropping message " + message.id);
+        }
+    }
+
+    /**
+     * Connects to the broker, reads on a second thread and writes queued messages
+     * until the bus is closed, reconnecting with a growing delay.
+     */
+    private void run() {
+        long delay = 500;
+        while (!closed) {
+            try (Socket connection = new Socket(host, port)) {
+                socket = connection;
+                connection.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                Thread reader = new Thread(() -> read(in), "cluster-bus-reader");
+                reader.setDaemon(true);
+                reader.start();
+                Log.info("Connected to cluster broker at " + host + ":" + port);
+                delay = 500;
+                while (!closed) {
+                    Message message = outbox.take();
+                    message.writeTo(out);
+                    if (outbox.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("Cluster bus connection failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay = Math.min(delay * 2, 30_000);
+        }
+    }
+
+    private void read(DataInputStream in) {
+        try {
+            while (true) {
+                listener.accept(Message.readFrom(in));
+            }
+        } catch (IOException e) {
+            // the writer notices the broken connection and reconnects
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket connection = socket;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Log.warn("Error closing cluster bus connection", e);
+            }
+        }
+    }
+
+    /**
+     * Forwards every message a node sends to all other connected nodes.
+     * Each node gets its own queue and writer, so a slow node does not hold up the others.
+     */
+    static final class Broker implements Runnable {
+        private final int port;
+        private final Set<NodeLink> nodes = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Constructs a new broker.
+         *
+         * @param port the port to listen on.
+         */
+        Broker(int port) {
+            this.port = port;
+        }
+
+        /**
+         * Accepts nodes until the server socket fails.
+         */
+        @Override
+        public void run() {
+            try (ServerSocket serverSocket = new ServerSocket(port)) {
+                Log.info("Cluster broker started on port " + port);
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    NodeLink node = new NodeLink(socket);
+                    nodes.add(node);
+                    node.start();
+                }
+            } catch (IOException e) {
+                Log.warn("Error in cluster broker", e);
+            }
+        }
+
+        /**
+         * The broker's connection to one node.
+         */
+        private final class NodeLink {
+            private final Socket socket;
+            private final BlockingQueue<Message> outbox = new ArrayBlockingQueue<>(ServerConfig.CLUSTER_OUTBOX);
+            private Thread writer;
+
+            NodeLink(Socket socket) {
+                this.socket = socket;
+            }
+
+            void start() {
+                writer = new Thread(this::write, "cluster-broker-writer");
+                writer.setDaemon(true);
+                writer.start();
+                Thread reader = new Thread(this::read, "cluster-broker-reader");
+                reader.setDaemon(true);
+                reader.start();
+            }
+
+            private void read() {
+                try {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    while (true) {
+                        Message message = Message.readFrom(in);
+                        for (NodeLink node : nodes) {
+                            if (node != this && !node.outbox.offer(message)) {
+                                Log.warn("Cluster broker dropping message for a slow node");
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+            }
+
+            private void write() {
+                try {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    while (true) {
+                        outbox.take().writeTo(out);
+                        if (outbox.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    close();
+                }
+            }
+
+            private void close() {
+                nodes.remove(this);
+                writer.interrupt();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.warn("Error closing broker link", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.saberi.collabocanvas;
+
+/**
+ * A token bucket: refills at a fixed rate up to a burst size, and every admitted message
+ * takes one token. Refilled lazily from the clock, so an idle bucket costs nothing.
+ * Not thread-safe; each bucket belongs to one connection's reader.
+ */
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * Constructs a new, full bucket.
+     *
+     * @param perSecond tokens added per second.
+     * @param burst     the most tokens the bucket holds.
+     */
+    TokenBucket(int perSecond, int burst) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return {@code true} if the message is admitted.
+     */
+    boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Gets how long until the next token is available.
+     *
+     * @return the wait in milliseconds, {@code 0} if a token is available now.
+     */
+    long millisUntilNext() {
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano / 1e6);
+    }
+}
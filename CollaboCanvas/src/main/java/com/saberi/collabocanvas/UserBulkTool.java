@@ -0,0 +1,202 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports and exports registered users in bulk, offline: stop the auth server first, as it
+ * keeps its own index of the data file.
+ * <p>
+ * {@code import} streams a file of one user per line, e.g.
+ * {@code {"Username":"bob","Email":"bob@example.com","Password":"secret"}}, in batches.
+ * Batches are validated with the same checks as a REGISTER and their passwords hashed on
+ * all cores, while the batches before them are stored; usernames already registered, or
+ * appearing earlier in the input, are skipped. The records are appended to the data file in
+ * input order with a single writer. Passwords that are already hashes, as in an exported
+ * file, are kept as they are.
+ * </p>
+ * <p>
+ * {@code export} streams the data file into the same format, one line per user, keeping the
+ * first registration of each name as the auth server does.
+ * </p>
+ * Usage: {@code java com.saberi.collabocanvas.UserBulkTool import|export <file> [dataFile]}
+ */
+public class UserBulkTool {
+    private static final int BATCH_SIZE = 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        if (args.length < 2 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.out.println("Usage: UserBulkTool import|export <file> [dataFile]");
+            return;
+        }
+        File dataFile = new File(args.length > 2 ? args[2] : ServerConfig.USER_DATA_FILE);
+        if (args[0].equals("import")) {
+            importUsers(new File(args[1]), dataFile);
+        } else {
+            exportUsers(dataFile, new File(args[1]));
+        }
+        Log.flush(1000);
+    }
+
+    /**
+     * The outcome of validating one batch of input lines.
+     */
+    private static final class Batch {
+        final List<JSONObject> records = new ArrayList<>();
+        int invalid;
+        int duplicates;
+    }
+
+    /**
+     * Imports the users of a file into the data file.
+     *
+     * @param input    the file to import.
+     * @param dataFile the auth server's data file.
+     * @throws IOException if a file cannot be read or written.
+     */
+    static void importUsers(File input, File dataFile) throws IOException, InterruptedException, ExecutionException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService validators = Executors.newFixedThreadPool(threads);
+        // Completed in order; bounded, so only a few batches are held in memory
+        Deque<Future<Batch>> pending = new ArrayDeque<>();
+        UserStore store = new UserStore(dataFile);
+        long start = System.nanoTime();
+        long read = 0, stored = 0, invalid = 0, duplicates = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8))) {
+            List<String> lines = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while (true) {
+                line = reader.readLine();
+                if (line != null && !line.isEmpty()) {
+                    lines.add(line);
+                    read++;
+                }
+                if (lines.size() == BATCH_SIZE || (line == null && !lines.isEmpty())) {
+                    List<String> batch = lines;
+                    long firstLine = read - batch.size() + 1;
+                    pending.add(validators.submit(() -> validate(batch, firstLine, store)));
+                    lines = new ArrayList<>(BATCH_SIZE);
+                }
+                while (!pending.isEmpty() && (pending.size() > threads * 2 || line == null)) {
+                    Batch batch = pending.poll().get();
+                    int added = store.registerAll(batch.records);
+                    stored += added;
+                    invalid += batch.invalid;
+                    duplicates += batch.duplicates + batch.records.size() - added;
+                }
+                if (line == null) {
+                    break;
+                }
+            }
+        } finally {
+            validators.shutdownNow();
+            store.close();
+        }
+        System.out.printf("Read %,d users: %,d imported, %,d already registered, %,d invalid, in %,d ms%n",
+                read, stored, duplicates, invalid, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Validates a batch and hashes the passwords of the users to store. Runs on a validator thread.
+     */
+    private static Batch validate(List<String> lines, long firstLine, UserStore store) {
+        Batch batch = new Batch();
+        JSONParser parser = new JSONParser();
+        for (int i = 0; i < lines.size(); i++) {
+            JSONObject user;
+            try {
+                user = (JSONObject) parser.parse(lines.get(i));
+            } catch (ParseException | ClassCastException e) {
+                user = null;
+            }
+            if (user == null || !(user.get("Username") instanceof String) || !(user.get("Email") instanceof String)
+                    || !(user.get("Password") instanceof String)) {
+                Log.warn("Skipping malformed user, record " + (firstLine + i));
+                batch.invalid++;
+                continue;
+            }
+            String userName = (String) user.get("Username");
+            String email = (String) user.get("Email");
+            String password = (String) user.get("Password");
+            if (Server.checkUserName(userName) != 0 || Server.checkEmail(email) != 0 || Server.checkPassword(password) != 0) {
+                Log.warn("Skipping invalid user, record " + (firstLine + i) + ": " + userName);
+                batch.invalid++;
+                continue;
+            }
+            if (store.get(userName) != null) {
+                batch.duplicates++; // no need to hash its password
+                continue;
+            }
+            JSONObject record = new JSONObject();
+            record.put("Type", "REGISTER");
+            record.put("Username", userName);
+            record.put("Email", email);
+            record.put("Password", PasswordHasher.isHash(password) ? password : PasswordHasher.hash(password));
+            batch.records.add(record);
+        }
+        return batch;
+    }
+
+    /**
+     * Exports the users of the data file.
+     *
+     * @param dataFile the auth server's data file.
+     * @param output   the file to write.
+     * @throws IOException if a file cannot be read or written.
+     */
+    static void exportUsers(File dataFile, File output) throws IOException {
+        Set<String> seen = new HashSet<>();
+        JSONParser parser = new JSONParser();
+        long exported = 0;
+        try (
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(dataFile), StandardCharsets.UTF_8));
+                Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))
+        ) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    JSONObject record = (JSONObject) parser.parse(line);
+                    String userName = record.get("Username").toString();
+                    if (!seen.add(userName)) {
+                        continue;
+                    }
+                    JSONObject user = new JSONObject();
+                    user.put("Username", userName);
+                    user.put("Email", record.get("Email"));
+                    user.put("Password", record.get("Password").toString());
+                    writer.write(user.toJSONString());
+                    writer.write(System.lineSeparator());
+                    exported++;
+                } catch (ParseException | ClassCastException | NullPointerException e) {
+                    Log.warn("Skipping invalid record in " + dataFile);
+                }
+            }
+        }
+        System.out.printf("Exported %,d users to %s%n", exported, output);
+    }
+}
@@ -0,0 +1,175 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registered users, read from the data file once and indexed by username, so a login is
+ * a hash lookup instead of a scan of the whole file.
+ * Registrations are written through: appended to the file first, then added to the index.
+ * A username can be registered once.
+ * The file keeps its format of one registration request per line, with the password hashed.
+ */
+final class UserStore {
+    /**
+     * One registered user.
+     */
+    static final class User {
+        final String userName;
+        final String email;
+        final String password;
+
+        User(String userName, String email, String password) {
+            this.userName = userName;
+            this.email = email;
+            this.password = password;
+        }
+    }
+
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final Writer file;
+
+    /**
+     * Loads the users from a data file and opens it for appending.
+     *
+     * @param dataFile the data file; created if missing.
+     * @throws IOException if the file cannot be read or opened.
+     */
+    UserStore(File dataFile) throws IOException {
+        load(dataFile);
+        file = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dataFile, true), StandardCharsets.UTF_8));
+    }
+
+    private void load(File dataFile) throws IOException {
+        if (!dataFile.exists()) {
+            return;
+        }
+        JSONParser parser = new JSONParser();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(dataFile), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    User user = toUser((JSONObject) parser.parse(line));
+                    // The first registration of a name owns it, as it did for the file scan
+                    users.putIfAbsent(user.userName, user);
+                } catch (ParseException | ClassCastException | NullPointerException e) {
+                    Log.warn("Skipping invalid record on line " + lineNumber + " of " + dataFile);
+                }
+            }
+        }
+    }
+
+    private static User toUser(JSONObject record) {
+        return new User(record.get("Username").toString(), (String) record.get("Email"), record.get("Password").toString());
+    }
+
+    /**
+     * Checks login credentials. Slow on purpose, see {@link PasswordHasher}.
+     *
+     * @param userName the username.
+     * @param password the password.
+     * @return {@code 0} if they match a registered user, {@code 1} otherwise.
+     */
+    int login(String userName, String password) {
+        User user = users.get(userName);
+        return user != null && PasswordHasher.verify(password, user.password) ? 0 : 1;
+    }
+
+    /**
+     * Stores a registration unless the username is taken: appends it to the file, then makes
+     * it visible to logins. Registrations are serialized, so of two concurrent requests for
+     * the same name exactly one succeeds.
+     *
+     * @param record the REGISTER request.
+     * @return {@code true} if stored, {@code false} if the username is already registered.
+     * @throws IOException if the file cannot be written; the index is then left unchanged.
+     */
+    synchronized boolean register(JSONObject record) throws IOException {
+        User user = toUser(record);
+        if (users.containsKey(user.userName)) {
+            return false;
+        }
+        file.write(record.toJSONString());
+        file.write(System.lineSeparator());
+        file.flush();
+        users.put(user.userName, user);
+        return true;
+    }
+
+    /**
+     * Stores many registrations with one flush, skipping usernames already registered,
+     * including earlier ones in the same list. Used by {@link UserBulkTool}.
+     *
+     * @param records the records to store, in order; the first record of a name wins.
+     * @return the number of records stored.
+     * @throws IOException if the file cannot be written; records written so far stay in the index.
+     */
+    synchronized int registerAll(List<JSONObject> records) throws IOException {
+        int stored = 0;
+        try {
+            for (JSONObject record : records) {
+                User user = toUser(record);
+                if (users.containsKey(user.userName)) {
+                    continue;
+                }
+                file.write(record.toJSONString());
+                file.write(System.lineSeparator());
+                users.put(user.userName, user);
+                stored++;
+            }
+        } finally {
+            file.flush();
+        }
+        return stored;
+    }
+
+    /**
+     * Looks up a user.
+     *
+     * @param userName the username.
+     * @return the user, or {@code null} if not registered.
+     */
+    User get(String userName) {
+        return users.get(userName);
+    }
+
+    /**
+     * Gets the number of registered users.
+     *
+     * @return the count.
+     */
+    int size() {
+        return users.size();
+    }
+
+    /**
+     * Closes the data file.
+     */
+    synchronized void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.warn("Error closing the user data file", e);
+        }
+    }
+}
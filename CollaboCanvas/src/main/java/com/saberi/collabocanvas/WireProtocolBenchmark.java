@@ -0,0 +1,122 @@
+package com.saberi.collabocanvas;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compares the drawing wire formats for a typical pen stroke:
+ * one JSON {@code draw} message per point (the original client), one JSON {@code stroke}
+ * segment, and one {@link BinaryProtocol} stroke frame.
+ * Prints bytes per stroke and the average encode and decode time of each format.
+ * <p>
+ * Usage: {@code java com.saberi.collabocanvas.WireProtocolBenchmark [pointsPerStroke] [iterations]}
+ * </p>
+ */
+public class WireProtocolBenchmark {
+    private static volatile Object sink; // keeps the JIT from discarding results
+
+    public static void main(String[] args) throws ParseException {
+        int points = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        // A wobbly line such as a mouse drag produces
+        Random random = new Random(42);
+        double[] xs = new double[points];
+        double[] ys = new double[points];
+        double x = 200, y = 150;
+        for (int i = 0; i < points; i++) {
+            x += 1 + random.nextDouble() * 3;
+            y += random.nextDouble() * 4 - 2;
+            xs[i] = x;
+            ys[i] = y;
+        }
+        String color = "0x1e90ffff";
+        double size = 5.0;
+
+        JSONObject[] drawMessages = new JSONObject[points];
+        JSONArray flat = new JSONArray();
+        for (int i = 0; i < points; i++) {
+            JSONObject draw = new JSONObject();
+            draw.put("action", "draw");
+            draw.put("x", xs[i]);
+            draw.put("y", ys[i]);
+            draw.put("color", color);
+            draw.put("size", size);
+            drawMessages[i] = draw;
+            flat.add(xs[i]);
+            flat.add(ys[i]);
+        }
+        JSONObject stroke = new JSONObject();
+        stroke.put("action", "stroke");
+        stroke.put("strokeId", "5f0c7a3e-8d1b-4a57-9b7e-2c4f1d6a9e31");
+        stroke.put("color", color);
+        stroke.put("size", size);
+        stroke.put("points", flat);
+
+        int drawBytes = 0;
+        for (JSONObject draw : drawMessages) {
+            drawBytes += Frame.encodeLine(draw).length;
+        }
+        byte[] strokeLine = Frame.encodeLine(stroke);
+        byte[] strokeFrame = BinaryProtocol.encode(stroke, null);
+
+        System.out.println("Points per stroke: " + points + ", iterations: " + iterations);
+        System.out.println("Bytes per stroke:");
+        System.out.println("  JSON draw per point : " + drawBytes);
+        System.out.println("  JSON stroke segment : " + strokeLine.length);
+        System.out.println("  binary stroke frame : " + strokeFrame.length);
+
+        // Warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            JSONParser parser = new JSONParser();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (JSONObject draw : drawMessages) {
+                    sink = draw.toJSONString();
+                }
+            }
+            long drawEncode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink = stroke.toJSONString();
+            }
+            long strokeEncode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink = BinaryProtocol.encode(stroke, null);
+            }
+            long binaryEncode = System.nanoTime() - start;
+
+            String strokeText = new String(strokeLine, StandardCharsets.UTF_8);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink = parser.parse(strokeText);
+            }
+            long strokeDecode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink = BinaryProtocol.decode(strokeFrame);
+            }
+            long binaryDecode = System.nanoTime() - start;
+
+            if (report) {
+                System.out.println("Average time per stroke (ns):");
+                System.out.println("  JSON draw per point : encode " + drawEncode / iterations);
+                System.out.println("  JSON stroke segment : encode " + strokeEncode / iterations
+                        + ", decode " + strokeDecode / iterations);
+                System.out.println("  binary stroke frame : encode " + binaryEncode / iterations
+                        + ", decode " + binaryDecode / iterations);
+            }
+        }
+    }
+}
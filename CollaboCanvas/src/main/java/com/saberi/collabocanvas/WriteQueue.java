@@ -0,0 +1,121 @@
+package com.saberi.collabocanvas;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of messages waiting to be written to one chat or multiplexed connection.
+ * Threads that broadcast chat, ping clients or answer auth requests only offer messages here;
+ * the connection's own writer thread drains it with {@link #drainTo(Sink)}, so a client that
+ * stops reading blocks nobody but its writer. Unlike {@link OutboundQueue} nothing is merged
+ * or dropped: a client too far behind is disconnected.
+ */
+final class WriteQueue {
+    /**
+     * Where the writer thread puts the messages.
+     */
+    interface Sink {
+        /**
+         * Writes one message, without flushing it.
+         *
+         * @param channel the {@link MuxProtocol} channel of the message; ignored on single-purpose connections.
+         * @param message the encoded message; shared with other recipients and never modified.
+         * @throws IOException if writing fails.
+         */
+        void write(byte channel, byte[] message) throws IOException;
+
+        /**
+         * Flushes what was written, once the queue ran empty.
+         *
+         * @throws IOException if writing fails.
+         */
+        void flush() throws IOException;
+    }
+
+    private final ArrayDeque<Entry> messages = new ArrayDeque<>();
+    private final int capacity;
+    private boolean closed;
+
+    /**
+     * Constructs a queue with the configured capacity, {@link ServerConfig#OUTBOUND_CAPACITY}.
+     */
+    WriteQueue() {
+        this(ServerConfig.OUTBOUND_CAPACITY);
+    }
+
+    /**
+     * Constructs a new write queue.
+     *
+     * @param capacity the maximum number of queued messages.
+     */
+    WriteQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues a message for the writer thread. Never blocks.
+     *
+     * @param channel the {@link MuxProtocol} channel of the message, or {@code 0}.
+     * @param message the encoded message.
+     * @return {@code false} if the queue is full and the client must be disconnected.
+     */
+    synchronized boolean offer(byte channel, byte[] message) {
+        if (closed) {
+            return true;
+        }
+        if (messages.size() >= capacity) {
+            return false;
+        }
+        messages.addLast(new Entry(channel, message));
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Writes queued messages until the queue is closed, flushing whenever it runs empty.
+     * Runs on the connection's writer thread.
+     *
+     * @param sink where to write.
+     * @throws IOException          if writing fails.
+     * @throws InterruptedException if the writer thread is interrupted.
+     */
+    void drainTo(Sink sink) throws IOException, InterruptedException {
+        while (true) {
+            Entry next;
+            boolean last;
+            synchronized (this) {
+                while (messages.isEmpty() && !closed) {
+                    wait();
+                }
+                if (closed) {
+                    return;
+                }
+                next = messages.pollFirst();
+                last = messages.isEmpty();
+            }
+            sink.write(next.channel, next.message);
+            if (last) {
+                sink.flush();
+            }
+        }
+    }
+
+    /**
+     * Discards what is queued and ends {@link #drainTo(Sink)}.
+     */
+    synchronized void close() {
+        closed = true;
+        messages.clear();
+        notifyAll();
+    }
+
+    private static final class Entry {
+        final byte channel;
+        final byte[] message;
+
+        Entry(byte channel, byte[] message) {
+            this.channel = channel;
+            this.message = message;
+        }
+    }
+}